@@ -27,6 +27,7 @@ import com.sun.tools.attach.VirtualMachineDescriptor;
 import chav1961.nanoftp.internal.Commands;
 import chav1961.nanoftp.internal.FTPServer;
 import chav1961.nanoftp.internal.ModeList;
+import chav1961.nanoftp.jmx.ContentCacheManager;
 import chav1961.nanoftp.jmx.JmxManager;
 import chav1961.nanoftp.jmx.JmxManagerMBean;
 import chav1961.purelib.basic.ArgParser;
@@ -49,7 +50,19 @@ public class Application {
 	public static final String	ARG_RFC_3659 = "rfc3659";
 	public static final String	ARG_RFC_ALL = "rfcAll";
 	public static final String	ARG_IGNORE = "ignore";
+	public static final String	ARG_SELECTOR = "nio";
+	public static final String	ARG_WORKERS = "workers";
+	public static final String	ARG_VIRTUAL_THREADS = "virtual";
+	public static final String	ARG_CHUNK_SIZE = "chunkSize";
+	public static final String	ARG_CACHE_SIZE = "cacheSize";
+	public static final String	ARG_MMAP = "mmap";
+	public static final String	ARG_LISTING_TTL = "listingTtl";
+	public static final String	ARG_DEFLATE_DIR = "deflateDir";
+	public static final String	ARG_DEFLATE_AFTER = "deflateAfter";
+	public static final String	ARG_NUMERIC_IDS = "numericIds";
+	public static final String	ARG_MAX_LINE_LENGTH = "maxLineLength";
 	public static final String	JMX_NAME = "chav1961.nanoftp:type=basic,name=server";
+	public static final String	JMX_CACHE_NAME = "chav1961.nanoftp:type=basic,name=contentCache";
 
 	public static void main(String[] args) {
 		final ArgParser	parser = new ApplicationArgParser();
@@ -65,8 +78,20 @@ public class Application {
 			final boolean		supportRFC2640 = parsed.getValue(ARG_RFC_2640, boolean.class) || parsed.getValue(ARG_RFC_ALL, boolean.class);
 			final boolean		supportRFC3659 = parsed.getValue(ARG_RFC_3659, boolean.class) || parsed.getValue(ARG_RFC_ALL, boolean.class);
 			final EnumSet<Commands>	blackList = buildBlackList(parsed.isTyped(ARG_IGNORE) ? parsed.getValue(ARG_IGNORE, String.class) : "");
+			final boolean		useSelector = parsed.getValue(ARG_SELECTOR, boolean.class);
+			final int			workers = parsed.getValue(ARG_WORKERS, int.class);
+			final boolean		useVirtualThreads = parsed.getValue(ARG_VIRTUAL_THREADS, boolean.class);
+			final int			chunkSize = parsed.getValue(ARG_CHUNK_SIZE, int.class);
+			final long			cacheSize = parsed.getValue(ARG_CACHE_SIZE, int.class) * 1024L * 1024L;
+			final boolean		useMappedFiles = parsed.getValue(ARG_MMAP, boolean.class);
+			final int			listingTtl = parsed.getValue(ARG_LISTING_TTL, int.class);
+			final File			deflateDir = parsed.isTyped(ARG_DEFLATE_DIR) ? new File(parsed.getValue(ARG_DEFLATE_DIR, String.class)) : null;
+			final int			deflateAfter = parsed.getValue(ARG_DEFLATE_AFTER, int.class);
+			final boolean		numericIds = parsed.getValue(ARG_NUMERIC_IDS, boolean.class);
+			final int			maxLineLength = parsed.getValue(ARG_MAX_LINE_LENGTH, int.class);
 			final boolean		needDebug = parsed.getValue(ARG_DEBUG_TRACE, boolean.class);
 			final ObjectName 	jmxName = new ObjectName(JMX_NAME);
+			final ObjectName 	jmxCacheName = new ObjectName(JMX_CACHE_NAME);
 			
 			if (parsed.isTyped(ARG_MODE)) {
 				final ModeList				mode = parsed.getValue(ARG_MODE, ModeList.class); 
@@ -99,7 +124,7 @@ public class Application {
 				print("Command completed");
 			}
 			else {
-				try(final FTPServer		server = new FTPServer(ftpPort, ftpDataPort, root, userPass, supportRFC2228, supportRFC2428, supportRFC2640, supportRFC3659, blackList, needDebug)) {
+				try(final FTPServer		server = new FTPServer(ftpPort, ftpDataPort, root, userPass, supportRFC2228, supportRFC2428, supportRFC2640, supportRFC3659, blackList, useSelector, workers, useVirtualThreads, chunkSize, cacheSize, useMappedFiles, listingTtl, deflateDir, deflateAfter, numericIds, maxLineLength, needDebug)) {
 					final MBeanServer 	mBeanServer = ManagementFactory.getPlatformMBeanServer();
 
 					Runtime.getRuntime().addShutdownHook(new Thread(()->{
@@ -113,6 +138,9 @@ public class Application {
 						final JmxManager	mgr = new JmxManager(server);
 						
 						mBeanServer.registerMBean(mgr, jmxName);
+						if (server.getContentCache() != null) {
+							mBeanServer.registerMBean(new ContentCacheManager(server.getContentCache()), jmxCacheName);
+						}
 						if (needDebug) {
 							server.getLogger().message(Severity.debug, "JMX server started, JMX name is ["+JMX_NAME+"]");
 						}
@@ -127,6 +155,9 @@ public class Application {
 					
 					if (parsed.getValue(ARG_JMX_ENABLE, boolean.class)) {
 						mBeanServer.unregisterMBean(jmxName);
+						if (server.getContentCache() != null) {
+							mBeanServer.unregisterMBean(jmxCacheName);
+						}
 						if (needDebug) {
 							server.getLogger().message(Severity.debug, "JMX server stopped");
 						}
@@ -197,6 +228,17 @@ public class Application {
 			new BooleanArg(ARG_RFC_3659, false, "Turn on RFC-3659 support on the service", false),
 			new BooleanArg(ARG_RFC_ALL, false, "Turn on all RFC-NNNN support on the service", false),
 			new StringArg(ARG_IGNORE, false, "Return '500' response for the FTP commands typed", ""),
+			new BooleanArg(ARG_SELECTOR, false, "Use selector-based engine for control connections instead of thread per session", false),
+			new IntegerArg(ARG_WORKERS, false, "Number of worker threads to process commands in the selector-based engine", 8, new long[][]{new long[]{1, 1024}}),
+			new BooleanArg(ARG_VIRTUAL_THREADS, false, "Run sessions, workers and data copiers on virtual threads (Java 21 or later required)", false),
+			new IntegerArg(ARG_CHUNK_SIZE, false, "Chunk size (in bytes) for zero-copy file transfers", 1 << 20, new long[][]{new long[]{4096, Integer.MAX_VALUE}}),
+			new IntegerArg(ARG_CACHE_SIZE, false, "Memory budget (in megabytes) for the content cache of BINARY RETR. Zero turns the cache off", 0, new long[][]{new long[]{0, 65536}}),
+			new BooleanArg(ARG_MMAP, false, "Serve BINARY RETR from memory-mapped files shared by all sessions. Intended for read-mostly roots", false),
+			new IntegerArg(ARG_LISTING_TTL, false, "Time to live (in seconds) of the cached LIST and MLSD directory listings. Zero turns the cache off", 0, new long[][]{new long[]{0, 86400}}),
+			new StringArg(ARG_DEFLATE_DIR, false, "Directory (outside the root) to keep compressed copies of the files frequently downloaded in the MODE Z. If not typed, copies are not used", ""),
+			new IntegerArg(ARG_DEFLATE_AFTER, false, "Number of MODE Z downloads of the file to build its compressed copy after", 3, new long[][]{new long[]{1, 1_000_000}}),
+			new BooleanArg(ARG_NUMERIC_IDS, false, "Show numeric user and group ids instead of names in the directory listings", false),
+			new IntegerArg(ARG_MAX_LINE_LENGTH, false, "Max length (in bytes) of the control connection command line. Connection with longer lines will be closed", 4096, new long[][]{new long[]{256, 1 << 20}}),
 			new BooleanArg(ARG_DEBUG_TRACE, false, "Turn on debug trace on stderr", false)
 		};
 		
@@ -230,6 +272,14 @@ public class Application {
 					return "FTP port ["+parser.getValue(ARG_FTP_PORT, int.class)+"] and FTP data port ["+parser.getValue(ARG_FTP_DATA_PORT, int.class)+"] must be different";
 				}
 
+				if (parser.isTyped(ARG_DEFLATE_DIR)) {
+					final File	dir = new File(parser.getValue(ARG_DEFLATE_DIR, String.class));
+					
+					if (!(dir.exists() && dir.isDirectory() && dir.canWrite())) {
+						return "Compressed copies directory ["+dir.getAbsolutePath()+"] not exists, not a directory or has not grants to write for you";
+					}
+				}
+
 				if (parser.isTyped(ARG_IGNORE)) {
 					for (String item : parser.getValue(ARG_IGNORE, String.class).toUpperCase().split(",")) {
 						try {
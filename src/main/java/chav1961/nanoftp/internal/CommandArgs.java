@@ -0,0 +1,228 @@
+package chav1961.nanoftp.internal;
+
+/**
+ * Hand-written parsers for the command arguments. Parsers scan arguments char by char, don't use regular expressions
+ * and don't allocate intermediate strings.
+ */
+final class CommandArgs {
+	static final long	NOT_A_NUMBER = -1;
+
+	private CommandArgs() {
+	}
+
+	/**
+	 * Parse unsigned decimal number.
+	 * @param seq sequence to parse
+	 * @param from start index (inclusive)
+	 * @param to end index (exclusive)
+	 * @param maxDigits max number of digits available
+	 * @return number parsed or {@value #NOT_A_NUMBER} if the range is empty, too long or contains non-digit chars
+	 */
+	static long parseNumber(final CharSequence seq, final int from, final int to, final int maxDigits) {
+		if (to <= from || to - from > maxDigits) {
+			return NOT_A_NUMBER;
+		}
+		else {
+			long	result = 0;
+
+			for (int index = from; index < to; index++) {
+				final char	c = seq.charAt(index);
+
+				if (c >= '0' && c <= '9') {
+					result = result * 10 + c - '0';
+				}
+				else {
+					return NOT_A_NUMBER;
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Parse whole sequence as unsigned decimal number.
+	 * @param seq sequence to parse
+	 * @param maxDigits max number of digits available
+	 * @return number parsed or {@value #NOT_A_NUMBER} if the sequence is not a number
+	 */
+	static long parseNumber(final CharSequence seq, final int maxDigits) {
+		return parseNumber(seq, 0, seq.length(), maxDigits);
+	}
+
+	static int skipBlanks(final CharSequence seq, int from, final int to) {
+		while (from < to && Character.isWhitespace(seq.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	static int skipNonBlanks(final CharSequence seq, int from, final int to) {
+		while (from < to && !Character.isWhitespace(seq.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * Skip trailing blanks of the range.
+	 * @param seq sequence to scan
+	 * @param from start index (inclusive)
+	 * @param to end index (exclusive)
+	 * @return new end index (exclusive) of the range
+	 */
+	static int skipTrailingBlanks(final CharSequence seq, final int from, int to) {
+		while (to > from && Character.isWhitespace(seq.charAt(to - 1))) {
+			to--;
+		}
+		return to;
+	}
+
+	/**
+	 * Parse 'PORT' command arguments (h1,h2,h3,h4,p1,p2). Blanks around numbers are allowed.
+	 * @param seq sequence to parse
+	 * @param target array of 6 items to store numbers parsed
+	 * @return true if arguments are valid
+	 */
+	static boolean parseHostPort(final CharSequence seq, final int[] target) {
+		final int	length = seq.length();
+		int			from = 0;
+
+		for (int index = 0; index < 6; index++) {
+			int		to = from;
+
+			while (to < length && seq.charAt(to) != ',') {
+				to++;
+			}
+			if ((to == length) != (index == 5)) {
+				return false;
+			}
+			else {
+				final int	start = skipBlanks(seq, from, to);
+				final int	end = skipTrailingBlanks(seq, start, to);
+				final long	value = parseNumber(seq, start, end, 3);
+
+				if (value == NOT_A_NUMBER || value > 255) {
+					return false;
+				}
+				else {
+					target[index] = (int)value;
+					from = to + 1;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check 'ALLO' command arguments (&lt;size&gt; [R &lt;size&gt;]).
+	 * @param seq sequence to check
+	 * @return true if arguments are valid
+	 */
+	static boolean isAllocation(final CharSequence seq) {
+		final int	length = seq.length();
+		final int	sizeEnd = skipNonBlanks(seq, 0, length);
+
+		if (parseNumber(seq, 0, sizeEnd, 18) == NOT_A_NUMBER) {
+			return false;
+		}
+		else if (sizeEnd == length) {
+			return true;
+		}
+		else {
+			final int	r = skipBlanks(seq, sizeEnd, length);
+
+			if (r == sizeEnd || r >= length || seq.charAt(r) != 'R') {
+				return false;
+			}
+			else {
+				final int	recordStart = skipBlanks(seq, r + 1, length);
+
+				return recordStart > r + 1 && parseNumber(seq, recordStart, length, 18) != NOT_A_NUMBER;
+			}
+		}
+	}
+
+	/**
+	 * Parse 'OPTS MODE' command arguments (Z LEVEL &lt;level&gt;). Keywords are case-insensitive.
+	 * @param seq sequence to parse
+	 * @return level parsed or {@value #NOT_A_NUMBER} if arguments are not valid
+	 */
+	static long parseDeflateLevel(final CharSequence seq) {
+		return parseDeflateLevel(seq, 0, seq.length());
+	}
+
+	/**
+	 * Parse 'OPTS MODE' command arguments (Z LEVEL &lt;level&gt;) in the range. Keywords are case-insensitive.
+	 * @param seq sequence to parse
+	 * @param from start index (inclusive)
+	 * @param to end index (exclusive)
+	 * @return level parsed or {@value #NOT_A_NUMBER} if arguments are not valid
+	 */
+	static long parseDeflateLevel(final CharSequence seq, final int from, final int to) {
+		final int	modeEnd = skipNonBlanks(seq, from, to);
+		final int	levelStart = skipBlanks(seq, modeEnd, to);
+		final int	levelEnd = skipNonBlanks(seq, levelStart, to);
+		final int	valueStart = skipBlanks(seq, levelEnd, to);
+
+		if (modeEnd != from + 1 || Character.toUpperCase(seq.charAt(from)) != 'Z' || levelStart == modeEnd || valueStart == levelEnd) {
+			return NOT_A_NUMBER;
+		}
+		else if (!isKeyword(seq, levelStart, levelEnd, "LEVEL")) {
+			return NOT_A_NUMBER;
+		}
+		else {
+			return parseNumber(seq, valueStart, to, 1);
+		}
+	}
+
+	/**
+	 * Check the range is the keyword. Comparison is case-insensitive.
+	 * @param seq sequence to check
+	 * @param from start index (inclusive)
+	 * @param to end index (exclusive)
+	 * @param keyword keyword in upper case
+	 * @return true if the range contains the keyword
+	 */
+	static boolean isKeyword(final CharSequence seq, final int from, final int to, final String keyword) {
+		if (to - from != keyword.length()) {
+			return false;
+		}
+		else {
+			for (int index = from; index < to; index++) {
+				if (Character.toUpperCase(seq.charAt(index)) != keyword.charAt(index - from)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Parse single-char option (for example, 'MODE' or 'STRU' arguments). Option is case-insensitive.
+	 * @param seq sequence to parse
+	 * @param available available option chars in upper case
+	 * @return option char parsed (in upper case) or 0 if the sequence is not a single-char option from the available ones
+	 */
+	static char parseOption(final CharSequence seq, final String available) {
+		return seq == null ? 0 : parseOption(seq, 0, seq.length(), available);
+	}
+
+	/**
+	 * Parse single-char option in the range. Option is case-insensitive.
+	 * @param seq sequence to parse
+	 * @param from start index (inclusive)
+	 * @param to end index (exclusive)
+	 * @param available available option chars in upper case
+	 * @return option char parsed (in upper case) or 0 if the range is not a single-char option from the available ones
+	 */
+	static char parseOption(final CharSequence seq, final int from, final int to, final String available) {
+		if (to - from != 1) {
+			return 0;
+		}
+		else {
+			final char	option = Character.toUpperCase(seq.charAt(from));
+
+			return available.indexOf(option) < 0 ? 0 : option;
+		}
+	}
+}
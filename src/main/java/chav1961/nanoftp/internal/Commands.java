@@ -1,5 +1,6 @@
 package chav1961.nanoftp.internal;
 
+import java.util.Arrays;
 import java.util.Locale;
 
 import chav1961.nanoftp.internal.FTPSession.LoggingStatus;
@@ -19,7 +20,7 @@ public enum Commands {
 	PASV(false, false, false, false, false, LoggingStatus.LOGGEDIN, "", "Enter passive mode"),
 	TYPE(false, false, false, false, false, LoggingStatus.LOGGEDIN, "{{A|E} [{N|T|A}] | I | L <byteSize>}", "Set transmission content type"),
 	STRU(false, false, false, false, false, LoggingStatus.LOGGEDIN, "{F|R|P}", "Define structiure of the file to transfer"),
-	MODE(false, false, false, false, false, LoggingStatus.LOGGEDIN, "{S|B|C}", "Set transmission mode"),
+	MODE(false, false, false, false, false, LoggingStatus.LOGGEDIN, "{S|B|C|Z}", "Set transmission mode"),
 	RETR(false, false, false, false, false, LoggingStatus.LOGGEDIN, "<File2Read>", "Read file content"),
 	STOR(false, false, false, false, false, LoggingStatus.LOGGEDIN, "<File2Write>", "Write file content"),
 	STOU(false, false, false, false, false, LoggingStatus.LOGGEDIN, "<File2Write>", "Write file content with typed or unique name"), // *
@@ -67,6 +68,35 @@ public enum Commands {
 	UTF8(false, false, false, true, false, LoggingStatus.UNKNOWN, "", "Set UTF8 modes"),
 	;
 	
+	private static final int		MAX_VERB_LENGTH = 4;
+	private static final int		HASH_BITS = 9;
+	private static final Commands[]	HASH_TABLE = new Commands[1 << HASH_BITS];
+	private static final int[]		HASH_KEYS = new int[1 << HASH_BITS];
+	private static final int		HASH_MULTIPLIER;
+	
+	static {
+		int		multiplier = 0x9E3779B1;
+		
+		// Search multiplier which maps all the verbs to different slots, so lookup is one multiplication and one comparison 
+		search: for (;;) {
+			Arrays.fill(HASH_TABLE, null);
+			for (Commands item : values()) {
+				final int	slot = slot(item.key, multiplier);
+				
+				if (HASH_TABLE[slot] != null) {
+					multiplier += 2;
+					continue search;
+				}
+				else {
+					HASH_TABLE[slot] = item;
+					HASH_KEYS[slot] = item.key;
+				}
+			}
+			break;
+		}
+		HASH_MULTIPLIER = multiplier;
+	}
+	
 	private final boolean		exitRequred;
 	private final boolean		isRFC2228;
 	private final boolean		isRFC2428;
@@ -76,6 +106,7 @@ public enum Commands {
 	private final String		args;
 	private final String		descriptor;
 	private final String		featureString;
+	private final int			key;
 	
 	private Commands(final boolean exitRequired, final boolean isRFC2228, final boolean isRFC2428, final boolean isRFC2640, final boolean isRFC3659, final LoggingStatus context, final String args, final String descriptor) {
 		this(exitRequired, isRFC2228, isRFC2428, isRFC2640, isRFC3659, context, args, descriptor, null);
@@ -104,6 +135,48 @@ public enum Commands {
 		this.args = args;
 		this.descriptor = descriptor;
 		this.featureString = featureString == null ? name() : featureString;
+		this.key = toKey(name(), 0, name().length());
+	}
+
+	/**
+	 * Find command by its verb. Verb is case-insensitive.
+	 * @param seq sequence containing verb
+	 * @param from verb start index (inclusive)
+	 * @param to verb end index (exclusive)
+	 * @return command found or null if the verb is unknown
+	 */
+	public static Commands lookup(final CharSequence seq, final int from, final int to) {
+		return lookup(toKey(seq, from, to));
+	}
+
+	/**
+	 * Find command by its verb in the raw control line bytes. Verb is case-insensitive.
+	 * @param content control line content
+	 * @param from verb start index (inclusive)
+	 * @param to verb end index (exclusive)
+	 * @return command found or null if the verb is unknown
+	 */
+	public static Commands lookup(final byte[] content, final int from, final int to) {
+		if (to <= from || to - from > MAX_VERB_LENGTH) {
+			return null;
+		}
+		else {
+			int		key = 0;
+			
+			for (int index = from; index < to && key >= 0; index++) {
+				key = appendKey(key, content[index] & 0xFF);
+			}
+			return lookup(key);
+		}
+	}
+
+	/**
+	 * Find command by its verb. Verb is case-insensitive.
+	 * @param verb verb to find command for
+	 * @return command found or null if the verb is unknown
+	 */
+	public static Commands lookup(final CharSequence verb) {
+		return lookup(verb, 0, verb.length());
 	}
 
 	public boolean isExitRequired() {
@@ -145,4 +218,46 @@ public enum Commands {
 	public String getFeatureString() {
 		return featureString;
 	}
+
+	private static int toKey(final CharSequence seq, final int from, final int to) {
+		if (to <= from || to - from > MAX_VERB_LENGTH) {
+			return -1;
+		}
+		else {
+			int		key = 0;
+			
+			for (int index = from; index < to && key >= 0; index++) {
+				key = appendKey(key, seq.charAt(index));
+			}
+			return key;
+		}
+	}
+	
+	private static int appendKey(final int key, final int c) {
+		// Verb chars are packed into int, one byte per char. Negative key marks invalid verb  
+		if (c >= 'a' && c <= 'z') {
+			return (key << 8) | (c - 'a' + 'A');
+		}
+		else if (c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+			return (key << 8) | c;
+		}
+		else {
+			return -1;
+		}
+	}
+	
+	private static Commands lookup(final int key) {
+		if (key <= 0) {
+			return null;
+		}
+		else {
+			final int	slot = slot(key, HASH_MULTIPLIER);
+			
+			return HASH_KEYS[slot] == key ? HASH_TABLE[slot] : null;
+		}
+	}
+	
+	private static int slot(final int key, final int multiplier) {
+		return (key * multiplier) >>> (32 - HASH_BITS);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package chav1961.nanoftp.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Byte-level reader of the control connection lines. Lines are scanned for the LF (CRLF) terminator in the fixed-size
+ * buffer, so line length can't exceed the buffer size. Command verb is looked up over the raw bytes, and only the
+ * argument part of the line is decoded to string. Reader serves both blocking streams and non-blocking channels.
+ * Reader is not thread-safe.
+ */
+class ControlLineReader {
+	private final byte[]		buffer;
+	private final ByteBuffer	wrapper;
+	private final int			maxLineLength;
+	private final Charset		charset;
+	private int					start = 0, limit = 0, scan = 0;
+	private int					lineStart = 0, lineEnd = 0, verbStart = 0, verbEnd = 0;
+
+	ControlLineReader(final int maxLineLength, final Charset charset) {
+		if (maxLineLength <= 0) {
+			throw new IllegalArgumentException("Max line length ["+maxLineLength+"] must be positive");
+		}
+		else if (charset == null) {
+			throw new NullPointerException("Charset can't be null");
+		}
+		else {
+			this.buffer = new byte[maxLineLength + 2];
+			this.wrapper = ByteBuffer.wrap(buffer);
+			this.maxLineLength = maxLineLength;
+			this.charset = charset;
+		}
+	}
+
+	/**
+	 * Read next line from the stream. Blocks until the line is completely received.
+	 * @param is stream to read line from. Can't be null
+	 * @return true if line was read, false on end of stream
+	 * @throws IOException on any I/O errors or if line is too long
+	 */
+	boolean readLine(final InputStream is) throws IOException {
+		while (!nextLine()) {
+			if (isOverflow()) {
+				throw new IOException("Control line is longer than "+maxLineLength+" bytes");
+			}
+			else {
+				compact();
+
+				final int	count = is.read(buffer, limit, buffer.length - limit);
+
+				if (count < 0) {
+					return false;
+				}
+				else {
+					limit += count;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read available content from the channel. Use {@link #nextLine()} to extract lines read.
+	 * @param channel channel to read content from. Can't be null
+	 * @return number of bytes read or -1 on end of stream
+	 * @throws IOException on any I/O errors
+	 */
+	int read(final ReadableByteChannel channel) throws IOException {
+		compact();
+		wrapper.limit(buffer.length).position(limit);
+
+		final int	count = channel.read(wrapper);
+
+		limit = wrapper.position();
+		return count;
+	}
+
+	/**
+	 * Extract next complete line from the content read.
+	 * @return true if line was extracted. Use {@link #getCommand()} and {@link #getArguments()} to access its content
+	 */
+	boolean nextLine() {
+		for (int index = scan; index < limit; index++) {
+			if (buffer[index] == '\n') {
+				lineStart = start;
+				lineEnd = index > start && buffer[index - 1] == '\r' ? index - 1 : index;
+				start = scan = index + 1;
+
+				verbStart = lineStart;
+				while (verbStart < lineEnd && isBlank(buffer[verbStart])) {
+					verbStart++;
+				}
+				verbEnd = verbStart;
+				while (verbEnd < lineEnd && buffer[verbEnd] != ' ') {
+					verbEnd++;
+				}
+				return true;
+			}
+		}
+		scan = limit;
+		return false;
+	}
+
+	/**
+	 * @return true if the buffer is full, but contains no complete line
+	 */
+	boolean isOverflow() {
+		return limit - start >= buffer.length;
+	}
+
+	int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	/**
+	 * @return command of the current line or null if the verb is unknown
+	 */
+	Commands getCommand() {
+		return Commands.lookup(buffer, verbStart, verbEnd);
+	}
+
+	/**
+	 * @return arguments of the current line (with leading and trailing blanks removed). Can be empty but not null
+	 */
+	String getArguments() {
+		int	from = verbEnd + 1, to = lineEnd;
+
+		while (from < to && isBlank(buffer[from])) {
+			from++;
+		}
+		while (to > from && isBlank(buffer[to - 1])) {
+			to--;
+		}
+		return from >= to ? "" : new String(buffer, from, to - from, charset);
+	}
+
+	/**
+	 * @return current line content. Intended for diagnostics only
+	 */
+	String getLine() {
+		return new String(buffer, lineStart, lineEnd - lineStart, charset);
+	}
+
+	private void compact() {
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, limit - start);
+			limit -= start;
+			scan -= start;
+			start = 0;
+		}
+	}
+
+	private static boolean isBlank(final byte b) {
+		return b >= 0 && b <= ' ';
+	}
+}
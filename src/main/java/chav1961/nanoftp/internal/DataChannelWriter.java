@@ -0,0 +1,318 @@
+package chav1961.nanoftp.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import chav1961.nanoftp.utils.BufferPool;
+import chav1961.nanoftp.utils.ZlibPool;
+
+/**
+ * Writer for the data connection. One instance is reused by the session for all its data connections. Output buffer
+ * is leased from the buffer pool on the first write and is returned to it on {@link #detach()}. ASCII characters are
+ * stored into the buffer directly, all other content is passed through the charset encoder. Lines written by
+ * {@link #writeLine(CharSequence)} are accumulated until the buffer content reaches the flush threshold, so the channel
+ * gets a few large writes consisting of whole lines instead of the write per line. In the 'MODE Z' content of the
+ * buffer is passed through the deflater leased from the zlib pool by {@link #deflate(int)}, and the zlib stream is
+ * completed by {@link #finish()}.
+ */
+class DataChannelWriter extends Writer {
+	private static final String	ASCII_PROBE = "\r\n 09AZaz~";
+	private static final byte[]	NO_INPUT = new byte[0];
+
+	private final BufferPool		pool;
+	private final ZlibPool			zlib;
+	private final int				bufferSize;
+	private final int				flushThreshold;
+	private final Charset			charset;
+	private final CharsetEncoder	encoder;
+	private final boolean			asciiCompatible;
+	private WritableByteChannel		channel;
+	private ByteBuffer				buffer;
+	private Deflater				deflater;
+	private ByteBuffer				compressed;
+
+	DataChannelWriter(final BufferPool pool, final ZlibPool zlib, final int bufferSize, final int flushThreshold, final Charset charset) {
+		if (pool == null) {
+			throw new NullPointerException("Buffer pool can't be null");
+		}
+		else if (zlib == null) {
+			throw new NullPointerException("Zlib pool can't be null");
+		}
+		else if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size ["+bufferSize+"] must be positive");
+		}
+		else if (flushThreshold <= 0 || flushThreshold > bufferSize) {
+			throw new IllegalArgumentException("Flush threshold ["+flushThreshold+"] out of range 1.."+bufferSize);
+		}
+		else if (charset == null) {
+			throw new NullPointerException("Charset can't be null");
+		}
+		else {
+			this.pool = pool;
+			this.zlib = zlib;
+			this.bufferSize = bufferSize;
+			this.flushThreshold = flushThreshold;
+			this.charset = charset;
+			this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.asciiCompatible = Arrays.equals(ASCII_PROBE.getBytes(charset), ASCII_PROBE.getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	void attach(final WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	void detach() throws IOException {
+		try {
+			flush();
+		} finally {
+			if (buffer != null) {
+				pool.release(buffer);
+				buffer = null;
+			}
+			releaseDeflater();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Compress all the following content up to {@link #finish()} or {@link #detach()} into zlib stream.
+	 * @param level compression level
+	 * @throws IOException on any I/O errors
+	 */
+	void deflate(final int level) throws IOException {
+		if (deflater != null) {
+			throw new IllegalStateException("Content is compressed already");
+		}
+		else {
+			flush();
+			deflater = zlib.acquireDeflater(level);
+			compressed = pool.acquire(bufferSize);
+		}
+	}
+
+	/**
+	 * Flush the buffer and complete zlib stream, if any. Content written after it is not compressed.
+	 * @throws IOException on any I/O errors
+	 */
+	void finish() throws IOException {
+		flush();
+		if (deflater != null) {
+			try {
+				deflater.finish();
+				while (!deflater.finished()) {
+					deflater.deflate(compressed);
+					write(compressed);
+				}
+			} finally {
+				releaseDeflater();
+			}
+		}
+	}
+
+	/**
+	 * @return charset of the data content
+	 */
+	Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Write content encoded in the writer charset already (for example, cached listing) as is.
+	 * @param content content to write. Can't be null
+	 * @throws IOException on any I/O errors
+	 */
+	void writeEncoded(final byte[] content) throws IOException {
+		if (content == null) {
+			throw new NullPointerException("Content can't be null");
+		}
+		else if (deflater == null && channel != null) {
+			// Buffered content precedes the given one, then the content goes to the channel without copying
+			flush();
+			final ByteBuffer	wrapper = ByteBuffer.wrap(content);
+
+			while (wrapper.hasRemaining()) {
+				channel.write(wrapper);
+			}
+		}
+		else {
+			for (int from = 0; from < content.length; ) {
+				final ByteBuffer	target = ensureBuffer();
+				final int			size = Math.min(target.remaining(), content.length - from);
+
+				target.put(content, from, size);
+				from += size;
+			}
+		}
+	}
+
+	/**
+	 * Write line with the CRLF terminator. Buffer is flushed only when its content reaches the flush threshold.
+	 * @param line line to write (without terminator)
+	 * @throws IOException on any I/O errors
+	 */
+	void writeLine(final CharSequence line) throws IOException {
+		append(line);
+		write('\r');
+		write('\n');
+		if (buffer.position() >= flushThreshold) {
+			flush();
+		}
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		if (asciiCompatible && c < 0x80) {
+			ensureBuffer().put((byte)c);
+		}
+		else {
+			encode(CharBuffer.wrap(new char[] {(char)c}));
+		}
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		for (int index = off, end = off + len; index < end; index++) {
+			final char	c = cbuf[index];
+
+			if (asciiCompatible && c < 0x80) {
+				ensureBuffer().put((byte)c);
+			}
+			else {
+				encode(CharBuffer.wrap(cbuf, index, end - index));
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		for (int index = off, end = off + len; index < end; index++) {
+			final char	c = str.charAt(index);
+
+			if (asciiCompatible && c < 0x80) {
+				ensureBuffer().put((byte)c);
+			}
+			else {
+				encode(CharBuffer.wrap(str, index, end));
+				return;
+			}
+		}
+	}
+
+	@Override
+	public Writer append(final CharSequence csq) throws IOException {
+		if (csq == null) {
+			write("null");
+		}
+		else {
+			append(csq, 0, csq.length());
+		}
+		return this;
+	}
+
+	@Override
+	public Writer append(final CharSequence csq, final int start, final int end) throws IOException {
+		if (csq == null) {
+			return append("null", start, end);
+		}
+		else if (csq instanceof String) {
+			write((String)csq, start, end - start);
+		}
+		else {
+			// Avoid CharSequence.toString() for reusable builders
+			for (int index = start; index < end; index++) {
+				final char	c = csq.charAt(index);
+
+				if (asciiCompatible && c < 0x80) {
+					ensureBuffer().put((byte)c);
+				}
+				else {
+					write(csq.subSequence(index, end).toString());
+					break;
+				}
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffer != null && buffer.position() > 0) {
+			if (channel == null) {
+				throw new IOException("Data channel is not attached");
+			}
+			else {
+				buffer.flip();
+				if (deflater == null) {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+				else {
+					// Deflater consumes the whole input, compressed content is written as soon as the output buffer is full
+					deflater.setInput(buffer);
+					while (!deflater.needsInput()) {
+						deflater.deflate(compressed);
+						write(compressed);
+					}
+					// Deflater keeps the input buffer reference, so cleared buffer would be taken as a new input
+					deflater.setInput(NO_INPUT);
+				}
+				buffer.clear();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		detach();
+	}
+
+	private ByteBuffer ensureBuffer() throws IOException {
+		if (buffer == null) {
+			buffer = pool.acquire(bufferSize);
+		}
+		else if (!buffer.hasRemaining()) {
+			flush();
+		}
+		return buffer;
+	}
+
+	private void write(final ByteBuffer content) throws IOException {
+		content.flip();
+		while (content.hasRemaining()) {
+			channel.write(content);
+		}
+		content.clear();
+	}
+
+	private void releaseDeflater() {
+		if (deflater != null) {
+			zlib.release(deflater);
+			pool.release(compressed);
+			deflater = null;
+			compressed = null;
+		}
+	}
+
+	private void encode(final CharBuffer content) throws IOException {
+		ensureBuffer();
+		encoder.reset();
+		while (encoder.encode(content, buffer, true).isOverflow()) {
+			flush();
+		}
+		while (encoder.flush(buffer).isOverflow()) {
+			flush();
+		}
+	}
+}
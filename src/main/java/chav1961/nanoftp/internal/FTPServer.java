@@ -2,14 +2,23 @@ package chav1961.nanoftp.internal;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
 import java.util.EnumSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import chav1961.nanoftp.utils.BufferPool;
+import chav1961.nanoftp.utils.ContentCache;
+import chav1961.nanoftp.utils.DeflatedCopyRegistry;
+import chav1961.nanoftp.utils.ListingCache;
+import chav1961.nanoftp.utils.MappedFileRegistry;
+import chav1961.nanoftp.utils.ZlibPool;
 import chav1961.purelib.basic.Utils;
 import chav1961.purelib.basic.interfaces.LoggerFacade;
 import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
@@ -18,16 +27,28 @@ import chav1961.purelib.concurrent.interfaces.ExecutionControl;
 
 public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner, AutoCloseable {
 	private static final AtomicInteger	unique = new AtomicInteger(1);
+	private static final int			MAX_POOLED_BUFFERS = 64;
+	private static final int			MAX_POOLED_ZLIB = 16;
+	private static final long			MAPPED_IDLE_TIMEOUT = 60_000;
+	private static final int			MAX_CACHED_LISTINGS = 1024;
+	private static final int			MAX_CACHED_LISTING_SIZE = 1 << 20;
+	private static final int			MAX_CACHED_NAMES = 1024;
+	private static final long			CACHED_NAMES_TTL = 10 * 60_000;
 
-	private final ExecutorService	exec = Executors.newCachedThreadPool((r)->{
-											final Thread	t = new Thread(r); 
-											
-											t.setDaemon(true);
-											t.setName("Async copier "+unique.incrementAndGet());
-											return t;
-									});
+	private final ExecutorService	exec;
+	private final ThreadFactory		sessionFactory;
 	private final LoggerFacade		logger = LoggerFacade.Factory.newInstance(URI.create(LoggerFacade.LOGGER_SCHEME+":err:/"));
+	private final BufferPool		bufferPool;
+	private final ZlibPool			zlibPool;
+	private final ContentCache		contentCache;
+	private final MappedFileRegistry	mappedFiles;
+	private final ListingCache		listingCache;
+	private final DeflatedCopyRegistry	deflatedCopies;
+	private final PrincipalNameCache	names;
+	private final ExecutorService	workers;
+	private final ServerSocketChannel	ssc;
 	private final ServerSocket		ss;
+	private final SelectorEngine	engine;
 	private final int				dataPort;
 	private final File				root;
 	private final SimpleValidator	validator;
@@ -36,11 +57,13 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 	private final boolean 			supportRFC2640;
 	private final boolean 			supportRFC3659;
 	private final EnumSet<Commands>	blackList;
+	private final int				transferChunkSize;
+	private final int				maxLineLength;
 	private final boolean			needDebug;
 	private volatile boolean		isStarted = false;
 	private volatile boolean		isSuspended = false;
 	
-	public FTPServer(final int serverPort, final int dataPort, final File root, final String userPass, final boolean supportRFC2228, final boolean supportRFC2428, final boolean supportRFC2640, final boolean supportRFC3659, final EnumSet<Commands> blackList, final boolean needDebug) throws IOException {
+	public FTPServer(final int serverPort, final int dataPort, final File root, final String userPass, final boolean supportRFC2228, final boolean supportRFC2428, final boolean supportRFC2640, final boolean supportRFC3659, final EnumSet<Commands> blackList, final boolean useSelector, final int workers, final boolean useVirtualThreads, final int transferChunkSize, final long cacheSize, final boolean useMappedFiles, final int listingTtl, final File deflateDir, final int deflateAfter, final boolean numericIds, final int maxLineLength, final boolean needDebug) throws IOException {
 		if (serverPort < 0 || serverPort > Character.MAX_VALUE) {
 			throw new IllegalArgumentException("Server port ["+serverPort+"] out of range 0.."+(int)Character.MAX_VALUE);
 		}
@@ -53,8 +76,28 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 		else if (blackList == null) {
 			throw new NullPointerException("Black list can't be null");
 		}
+		else if (useSelector && workers <= 0) {
+			throw new IllegalArgumentException("Number of workers ["+workers+"] must be positive");
+		}
+		else if (transferChunkSize <= 0) {
+			throw new IllegalArgumentException("Transfer chunk size ["+transferChunkSize+"] must be positive");
+		}
+		else if (cacheSize < 0) {
+			throw new IllegalArgumentException("Content cache size ["+cacheSize+"] can't be negative");
+		}
+		else if (listingTtl < 0) {
+			throw new IllegalArgumentException("Listing time to live ["+listingTtl+"] can't be negative");
+		}
+		else if (deflateDir != null && deflateAfter <= 0) {
+			throw new IllegalArgumentException("Downloads before compressed copy ["+deflateAfter+"] must be positive");
+		}
+		else if (maxLineLength <= 0) {
+			throw new IllegalArgumentException("Max control line length ["+maxLineLength+"] must be positive");
+		}
 		else {
-			this.ss = new ServerSocket(serverPort);
+			this.ssc = ServerSocketChannel.open();
+			this.ssc.bind(new InetSocketAddress(serverPort));
+			this.ss = ssc.socket();
 			this.dataPort = dataPort;
 			this.root = root;
 			this.validator = Utils.checkEmptyOrNullString(userPass) 
@@ -65,7 +108,31 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 		    this.supportRFC2640 = supportRFC2640;
 		    this.supportRFC3659 = supportRFC3659;
 		    this.blackList = blackList;
+		    this.transferChunkSize = transferChunkSize;
+		    this.maxLineLength = maxLineLength;
+		    this.bufferPool = new BufferPool(MAX_POOLED_BUFFERS, logger, needDebug);
+		    this.zlibPool = new ZlibPool(MAX_POOLED_ZLIB);
+		    this.contentCache = cacheSize > 0 ? new ContentCache(cacheSize) : null;
+		    this.mappedFiles = useMappedFiles ? new MappedFileRegistry(MAPPED_IDLE_TIMEOUT, logger, needDebug) : null;
+		    this.names = new PrincipalNameCache(MAX_CACHED_NAMES, CACHED_NAMES_TTL, numericIds);
+		    this.deflatedCopies = deflateDir != null ? new DeflatedCopyRegistry(root, deflateDir, deflateAfter, zlibPool, logger, needDebug) : null;
+		    this.listingCache = listingTtl > 0 ? new ListingCache(listingTtl * 1000L, MAX_CACHED_LISTINGS, MAX_CACHED_LISTING_SIZE, logger, needDebug) : null;
 			this.needDebug = needDebug;
+			final boolean	virtual = useVirtualThreads && getVirtualThreadFactory("") != null;
+			
+			if (useVirtualThreads && !virtual) {
+				getLogger().message(Severity.warning, "Virtual threads are not supported by the JVM, platform threads will be used");
+			}
+			this.exec = Executors.newCachedThreadPool(newThreadFactory("Async copier ", virtual));
+			this.sessionFactory = newThreadFactory("FTP session ", virtual);
+			if (useSelector) {
+				this.workers = Executors.newFixedThreadPool(workers, newThreadFactory("FTP worker ", virtual));
+				this.engine = new SelectorEngine(this, ssc, this.workers, exec, needDebug);
+			}
+			else {
+				this.workers = null;
+				this.engine = null;
+			}
 		}
 	}
 
@@ -76,15 +143,18 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 
 	@Override
 	public void run() {
+		if (engine != null) {
+			engine.run();
+			return;
+		}
 		for (;;) {
 			try {
 				final Socket		sock = ss.accept();
 				
 				if (isStarted() && !isSuspended()) {
-					final FTPSession 	w = new FTPSession(sock, dataPort, exec, logger, root, validator, supportRFC2228, supportRFC2428, supportRFC2640, supportRFC3659, blackList,  needDebug);
-					final Thread		t = new Thread(w);
+					final FTPSession 	w = newSession(sock);
+					final Thread		t = sessionFactory.newThread(w);
 		
-					t.setDaemon(true);
 					t.setName("FTP session ["+unique.incrementAndGet()+"] for "+sock.getRemoteSocketAddress());
 					t.start();
 				}
@@ -101,6 +171,18 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 		}
 	}
 	
+	/**
+	 * Get content cache for BINARY RETR.
+	 * @return content cache or null if it is not turned on
+	 */
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+
+	FTPSession newSession(final Socket sock) {
+		return new FTPSession(sock, dataPort, exec, logger, root, validator, supportRFC2228, supportRFC2428, supportRFC2640, supportRFC3659, blackList, bufferPool, zlibPool, contentCache, mappedFiles, deflatedCopies, listingCache, names, transferChunkSize, maxLineLength, needDebug);
+	}
+	
 	@Override
 	public synchronized void start() throws IOException {
 		if (isStarted()) {
@@ -174,6 +256,20 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 	public void close() throws IOException {
 		ss.close();
 		exec.shutdownNow();
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+		bufferPool.close();
+		if (deflatedCopies != null) {
+			deflatedCopies.close();
+		}
+		zlibPool.close();
+		if (mappedFiles != null) {
+			mappedFiles.close();
+		}
+		if (listingCache != null) {
+			listingCache.close();
+		}
 		if (needDebug) {
 			getLogger().message(Severity.debug, "Server closed");
 		}
@@ -181,5 +277,36 @@ public class FTPServer implements Runnable, ExecutionControl, LoggerFacadeOwner,
 
 	public synchronized void shutdown() throws IOException {
 		ss.close();
+		if (engine != null) {
+			engine.wakeup();
+		}
+	}
+
+	private ThreadFactory newThreadFactory(final String prefix, final boolean useVirtualThreads) {
+		if (useVirtualThreads) {
+			return getVirtualThreadFactory(prefix);
+		}
+		else {
+			return (r)->{
+				final Thread	t = new Thread(r); 
+				
+				t.setDaemon(true);
+				t.setName(prefix+unique.incrementAndGet());
+				return t;
+			};
+		}
+	}
+
+	private static ThreadFactory getVirtualThreadFactory(final String prefix) {
+		// Thread.ofVirtual().name(prefix, 1).factory() is called by reflection, because virtual threads are available since Java 21 only
+		try {
+			final Class<?>	builderClass = Class.forName("java.lang.Thread$Builder");
+			final Object	builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Object	namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+			
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(namedBuilder);
+		} catch (ReflectiveOperationException | ClassCastException exc) {
+			return null;
+		}
 	}
 }
@@ -1,40 +1,64 @@
 package chav1961.nanoftp.internal;
 
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFileAttributes;
-import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.EnumSet;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
-
-import chav1961.nanoftp.utils.InternalUtils;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import chav1961.nanoftp.streams.AsciiCodec;
+import chav1961.nanoftp.streams.BlockInputStream;
+import chav1961.nanoftp.streams.BlockOutputStream;
+import chav1961.nanoftp.streams.CompressedInputStream;
+import chav1961.nanoftp.streams.CompressedOutputStream;
+import chav1961.nanoftp.streams.FramedOutputStream;
+import chav1961.nanoftp.streams.RecordInputStream;
+import chav1961.nanoftp.streams.RecordOutputStream;
+import chav1961.nanoftp.streams.RestartMarkerDetectedException;
+import chav1961.nanoftp.streams.ZlibInputStream;
+import chav1961.nanoftp.streams.ZlibOutputStream;
+import chav1961.nanoftp.utils.BufferPool;
+import chav1961.nanoftp.utils.ContentCache;
+import chav1961.nanoftp.utils.DeflatedCopyRegistry;
+import chav1961.nanoftp.utils.ListingCache;
+import chav1961.nanoftp.utils.MappedFileRegistry;
+import chav1961.nanoftp.utils.ZlibPool;
 import chav1961.purelib.basic.Utils;
 import chav1961.purelib.basic.interfaces.LoggerFacade;
 import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
@@ -42,8 +66,11 @@ import chav1961.purelib.basic.interfaces.LoggerFacadeOwner;
 import chav1961.purelib.basic.interfaces.ProgressIndicator;
 
 class FTPSession implements Runnable, LoggerFacadeOwner {
-	private static final File[]	EMPTY_FILE_ARRAY = new File[0];
 	private static final String	EOL = "\r\n";
+	private static final int	DATA_BUFFER_SIZE = 64 * 1024;
+	private static final int	DATA_FLUSH_THRESHOLD = 60 * 1024;
+	private static final int	DEFAULT_DEFLATE_LEVEL = 6;
+	private static final int	DATA_CONNECTION_TIMEOUT = 60_000;
 
 	static enum LoggingStatus {
 		NOTLOGGEDIN,
@@ -65,9 +92,31 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		UNKNOWN
 	}
 
+	private static enum TransmissionMode {
+		STREAM,
+		BLOCK,
+		COMPRESSED,
+		DEFLATE
+	}
+
 	@FunctionalInterface
 	private static interface Sender {
-		void send(String content) throws IOException;
+		void send(CharSequence content) throws IOException;
+	}
+
+	@FunctionalInterface
+	private static interface RestartMarkerListener {
+		void markerReceived(String marker, long position) throws IOException;
+	}
+
+	@FunctionalInterface
+	private static interface ListingProducer {
+		void produce(Sender sender) throws IOException;
+	}
+
+	@FunctionalInterface
+	private static interface FileProcessor {
+		void process(File file) throws IOException;
 	}
 	
 	private final Socket 			controlSocket;
@@ -75,18 +124,33 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	private final ExecutorService	service;
 	private final LoggerFacade		logger;
 	private final File 				root;
-	private final DataConnection	conn = new DataConnection();
+	private final DataConnection	conn;
 	private final boolean 			supportRFC2228;
 	private final boolean 			supportRFC2428;
 	private final boolean 			supportRFC2640;
 	private final boolean 			supportRFC3659;
 	private final EnumSet<Commands>	blackList;
+	private final int				transferChunkSize;
+	private final int				maxLineLength;
 	private final boolean 			debugMode;
 	private final SimpleValidator	validator;
+	private final Lock				answerLock = new ReentrantLock();
+	private final BufferPool		bufferPool;
+	private final ZlibPool			zlibPool;
+	private final ContentCache		contentCache;
+	private final MappedFileRegistry	mappedFiles;
+	private final DeflatedCopyRegistry	deflatedCopies;
+	private final ListingCache		listingCache;
+	private final PrincipalNameCache	names;
+	private final ListingFormatter	formatter = new ListingFormatter();
+	private final MLSDResponse		mlsd = new MLSDResponse(formatter);
 
 	private String 				currDirectory = "/";
-	private Writer 				controlOutWriter;
+	private ReplyWriter			controlOut;
 	private TransferType 		transferMode;
+	private TransmissionMode	transmissionMode;
+	private int					deflateLevel;
+	private boolean				recordStructure;
 	private LoggingStatus 		currentLoggingStatus;
 	private Locale				langLocale = Locale.getDefault();
 	private String				currentUser;
@@ -95,8 +159,9 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	private Future<?>			future = null;
 	private boolean				ignoreEPSV = false;
 	private boolean				isUTF8On = false;
+	private long				restartOffset = 0;
   
-	FTPSession(final Socket client, final int dataPort, final ExecutorService service, final LoggerFacade logger, final File root, final SimpleValidator validator, final boolean supportRFC2228, final boolean supportRFC2428, final boolean supportRFC2640, final boolean supportRFC3659, final EnumSet<Commands> blackList, final boolean debugMode) {
+	FTPSession(final Socket client, final int dataPort, final ExecutorService service, final LoggerFacade logger, final File root, final SimpleValidator validator, final boolean supportRFC2228, final boolean supportRFC2428, final boolean supportRFC2640, final boolean supportRFC3659, final EnumSet<Commands> blackList, final BufferPool bufferPool, final ZlibPool zlibPool, final ContentCache contentCache, final MappedFileRegistry mappedFiles, final DeflatedCopyRegistry deflatedCopies, final ListingCache listingCache, final PrincipalNameCache names, final int transferChunkSize, final int maxLineLength, final boolean debugMode) {
 	    this.controlSocket = client;
 	    this.dataPort = dataPort;
 	    this.service = service;
@@ -107,6 +172,16 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	    this.supportRFC2640 = supportRFC2640;
 	    this.supportRFC3659 = supportRFC3659;
 	    this.blackList = blackList;
+	    this.bufferPool = bufferPool;
+	    this.zlibPool = zlibPool;
+	    this.contentCache = contentCache;
+	    this.mappedFiles = mappedFiles;
+	    this.deflatedCopies = deflatedCopies;
+	    this.listingCache = listingCache;
+	    this.names = names;
+	    this.conn = new DataConnection();
+	    this.transferChunkSize = transferChunkSize;
+	    this.maxLineLength = maxLineLength;
 	    this.debugMode = debugMode;
 	    this.root = root;
 	    clearSettings();
@@ -119,21 +194,20 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
   
 	@Override
 	public void run() {
-		debug("FTP session started, remote address is ["+controlSocket.getRemoteSocketAddress()+"], current working directory is <" + this.currDirectory + ">");
-
 		try(final Socket	s = controlSocket;
-			final Reader	rdr = supportRFC2640 ? new InputStreamReader(s.getInputStream(), "UTF-8") : new InputStreamReader(s.getInputStream());
-			final BufferedReader	controlIn = new BufferedReader(rdr);
-			final Writer	controlOutWriter = new OutputStreamWriter(s.getOutputStream())) {
-			String			line;
-
-			this.controlOutWriter = controlOutWriter;
-			sendAnswer(MessageType.MSG_WELCOME);
-			while ((line = controlIn.readLine()) != null) {
-				if (!executeCommand(line)) {
+			final InputStream	controlIn = new ReplyFlushingInputStream(s.getInputStream());
+			final OutputStream	controlOutStream = s.getOutputStream()) {
+			final ControlLineReader	rdr = newLineReader();
+
+			open(controlOutStream);
+			while (rdr.readLine(controlIn)) {
+				final Commands	cmd = rdr.getCommand();
+				
+				if (!executeCommand(cmd, rdr.getArguments(), cmd == null && debugMode ? rdr.getLine() : null)) {
 					break;
 				}
 			}
+			flushAnswers();
 		} catch (Exception e) {
 			if (future != null && !future.isDone()) {
 				future.cancel(true);
@@ -146,15 +220,71 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}
 
-	private boolean executeCommand(final String c) throws IOException {
-		final int 		blank = c.indexOf(' ');
-		final String 	command = blank == -1 ? c : c.substring(0, blank);
-		final String 	args = blank == -1 ? "" : c.substring(blank + 1).trim();
-		
+	Charset getControlCharset() {
+		return supportRFC2640 ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+	}
+
+	void open(final OutputStream controlOutStream) throws IOException {
+		debug("FTP session started, remote address is ["+controlSocket.getRemoteSocketAddress()+"], current working directory is <" + this.currDirectory + ">");
+		this.controlOut = new ReplyWriter(controlOutStream, getControlCharset());
+		sendAnswer(MessageType.MSG_WELCOME);
+	}
+
+	ControlLineReader newLineReader() {
+		return new ControlLineReader(maxLineLength, getControlCharset());
+	}
+
+	/**
+	 * Process command.
+	 * @param cmd command to process or null if the command verb is unknown
+	 * @param args command arguments. Can't be null
+	 * @param line whole command line for diagnostics. Can be null
+	 * @return false if the session must be closed
+	 * @throws IOException on any I/O errors
+	 */
+	boolean processCommand(final Commands cmd, final String args, final String line) throws IOException {
+		return executeCommand(cmd, args, line);
+	}
+
+	/**
+	 * Flush all the replies queued. Replies of the command batch are not flushed by the commands themselves (except preliminary
+	 * ones), so the engine must call this method before waiting for the next commands.
+	 * @throws IOException on any I/O errors
+	 */
+	void flushAnswers() throws IOException {
+		answerLock.lock();
 		try {
-			final Commands	cmd = Commands.valueOf(command.trim().toUpperCase());
+			if (controlOut != null) {
+				controlOut.flush();
+			}
+		} finally {
+			answerLock.unlock();
+		}
+	}
+
+	void close() {
+		if (future != null && !future.isDone()) {
+			future.cancel(true);
+		}
+		closeDataConnection();
+		debug("FTP session on ["+controlSocket.getRemoteSocketAddress()+"] ended");
+	}
+
+	private boolean executeCommand(final Commands cmd, final String args, final String c) throws IOException {
+		if (cmd == null) {
+			if (debugMode) {
+				debug("Wrong command: " + c);
+			}
+			sendAnswer(MessageType.MSG_UNKNOWN_COMMAND);
+			return true;
+		}
+		else {
+			final long		restart = restartOffset;
 
-			debug("Command: " + cmd + ", args: <" + (cmd == Commands.PASS ? "***" : args) + ">");
+			restartOffset = 0;
+			if (debugMode) {
+				debug("Command: " + cmd + ", args: <" + (cmd == Commands.PASS ? "***" : args) + ">");
+			}
 			if(cmd.isFeature() && !isFeatureSupported(cmd)) {
 				sendAnswer(MessageType.MSG_UNSUPPORTED_COMMAND);
 				return true;
@@ -214,26 +344,26 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 							}
 							break;
 						case TYPE:
-					  		handleType(args.toUpperCase());
+					  		handleType(args);
 							break;
 						case STRU:
-					  		handleStru(args.toUpperCase());
+					  		handleStru(args);
 							break;
 						case MODE:
-					  		handleMode(args.toUpperCase());
+					  		handleMode(args);
 							break;
 						// Chapter 4.1.3 RFC-959.
 						case RETR:
-					  		handleRetr(args);
+					  		handleRetr(args, restart);
 							break;
 						case STOR:
-					  		handleStor(args, false, false);
+					  		handleStor(args, false, false, restart);
 							break;
 						case STOU:
-					  		handleStor(args, false, true);
+					  		handleStor(args, false, true, 0);
 							break;
 						case APPE:
-					  		handleStor(args, true, false);
+					  		handleStor(args, true, false, 0);
 							break;
 						case ALLO:
 					  		handleAllo(args);
@@ -316,7 +446,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 						case CONF:	// TODO:
 						case ENC:	// TODO:
 						case XENC:	// TODO:							
-					  		throw new UnsupportedOperationException("Command ["+c+"] is not supported yet");
+					  		throw new UnsupportedOperationException("Command ["+cmd+"] is not supported yet");
 						// RFC-2428.
 						case EPRT:
 							if (ignoreEPSV) {
@@ -355,21 +485,17 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 							handleMlsd(args.isEmpty() ? currDirectory : args);
 							break;
 						default:
-					  		throw new UnsupportedOperationException("Command ["+c+"] is not supported yet");
+					  		throw new UnsupportedOperationException("Command ["+cmd+"] is not supported yet");
 					}
 					return !cmd.isExitRequired();
 				} catch (CommandParserException exc) {
-					sendAnswer(MessageType.MSG_ILLEGAL_ARGUMENT, exc.getLocalizedMessage());
+					sendAnswer(exc.getMessageType(), exc.getParameters());
 					return true;
 				} catch (IllegalArgumentException exc) {
 					sendAnswer(MessageType.MSG_ILLEGAL_ARGUMENT, exc.getLocalizedMessage());
 					return true;
 				}
 			}
-		} catch (IllegalArgumentException exc) {
-			debug("Wrong command: " + c);
-			sendAnswer(MessageType.MSG_UNKNOWN_COMMAND);
-			return true;
 		}
 	}
 
@@ -478,12 +604,11 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 		else {
 			final File	current = getFileDesc(args);
-			final File[] 	dirContent = getDirContent(current);
 		
-			if (dirContent == null) {
+			if (!current.exists()) {
 				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(current));
 			} else {
-				sendDirContent(dirContent, this::sendCommandLine);
+				sendDirContent(current, (s)->sendCommandLine(s));
 			}
 		}
 	}
@@ -495,12 +620,14 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		} 
 		else {
 			final File		current = getFileDesc(args == null || args.startsWith("-") ? "" : args);
-			final File[] 	dirContent = getDirContent(current);
 		
-			if (dirContent == null) {
+			if (!current.exists()) {
 				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(current));
 			} else {
-				sendDirContent(dirContent, this::sendDataLine);
+				sendAnswer(MessageType.MSG_OPEN_CONN_FOR_LIST);
+				startDataTransfer();
+				sendListing(current, ListingCache.Kind.LIST, (s)->formatDirContent(current, s));
+				completeDataTransfer();
 				closeDataConnection();
 			}
 		}
@@ -512,18 +639,14 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		} 
 		else if (isFileNameValid(args)) {
 			final File	current = getFileDesc(args == null ? "" : args);
-			final File[] 	dirContent = getDirContent(current);
 		
-			if (dirContent == null) {
+			if (!current.exists()) {
 				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(current));
 			} else {
 				sendAnswer(MessageType.MSG_OPEN_CONN_FOR_LIST);
-
-				for (File content : dirContent) {
-					sendDataLine(content.getName());
-				}
-
-				sendAnswer(MessageType.MSG_TRANSFER_COMPLETED);
+				startDataTransfer();
+				walkDirContent(current, (f)->sendDataLine(f.getName()));
+				completeDataTransfer();
 				closeDataConnection();
 			}
 		}
@@ -538,10 +661,11 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 
 	private void handlePort(final String args) throws IOException {
 		// args: ip1,ip2,ip3,ip4,port/256,port%256
-		if (args.matches("\\d{1,3},\\d{1,3},\\d{1,3},\\d{1,3},\\d{1,3},\\d{1,3}")) {
-			final String[] 	content = args.split(",");
-			final String 	hostName = content[0].trim() + '.' + content[1].trim() + '.' + content[2].trim() + '.' + content[3].trim();
-			final int 		port = Integer.parseInt(content[4].trim()) * 256 + Integer.parseInt(content[5].trim());
+		final int[]		content = new int[6];
+		
+		if (CommandArgs.parseHostPort(args, content)) {
+			final String 	hostName = content[0] + "." + content[1] + '.' + content[2] + '.' + content[3];
+			final int 		port = content[4] * 256 + content[5];
 		
 			if (openDataConnectionActive(hostName, port)) {
 				sendAnswer(MessageType.MSG_COMMAND_OK);
@@ -557,10 +681,13 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 
 	private void handleEPort(final String args) throws IOException {
 		// args either |2|::1|12345| or |1|192.168.0.1|12345|
-		if (args.matches("\\|(1|2)\\|.*\\|\\d{1,5}\\|")) {
-			final String[] splitArgs = args.split("\\|");
-			
-			openDataConnectionActive(splitArgs[2], Integer.parseInt(splitArgs[3]));
+		final int		length = args.length();
+		final int		hostEnd = length > 3 ? args.lastIndexOf('|', length - 2) : -1;
+		final long		port = hostEnd > 2 ? CommandArgs.parseNumber(args, hostEnd + 1, length - 1, 5) : CommandArgs.NOT_A_NUMBER;
+		
+		if (length > 3 && args.charAt(0) == '|' && (args.charAt(1) == '1' || args.charAt(1) == '2') && args.charAt(2) == '|' 
+				&& args.charAt(length - 1) == '|' && port != CommandArgs.NOT_A_NUMBER) {
+			openDataConnectionActive(args.substring(3, hostEnd), (int)port);
 			sendAnswer(MessageType.MSG_COMMAND_OK);
 		}
 		else {
@@ -603,14 +730,20 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}
 
 	private void handleFeat() throws IOException {
-		sendBlock(MessageType.MSG_EXTENSIONS_START, MessageType.MSG_EXTENSIONS_END, Commands.values(), (v)->{
-			if (v.isFeature() && !blackList.contains(v)) {
-				return v.getFeatureString();
-			}
-			else {
-				return null;
+		final List<String>	features = new ArrayList<>();
+		
+		for (Commands item : Commands.values()) {
+			if (item.isFeature() && !blackList.contains(item)) {
+				features.add(item == Commands.MLST ? mlsd.getFeatureString() : item.getFeatureString());
 			}
-		});
+		}
+		if (supportRFC3659 && !blackList.contains(Commands.REST)) {
+			features.add("REST STREAM");
+		}
+		if (!blackList.contains(Commands.MODE)) {
+			features.add("MODE Z");
+		}
+		sendBlock(MessageType.MSG_EXTENSIONS_START, MessageType.MSG_EXTENSIONS_END, features, (v)->v);
 	}
 
 	private void handleOpts(final String args) throws IOException, CommandParserException {
@@ -619,19 +752,41 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			throw new IllegalArgumentException("'OPTS' arguments can't be null or empty");
 		}
 		else {
-			final int 		blank = args.indexOf(' ');
-			final String 	command = blank == -1 ? args : args.substring(0, blank);
-			final String 	parm = blank == -1 ? "" : args.substring(blank + 1).trim();
-			final Commands	cmd = Commands.valueOf(command.trim().toUpperCase());
+			final int		length = args.length();
+			final int		start = CommandArgs.skipBlanks(args, 0, length);
+			final int 		verbEnd = CommandArgs.skipNonBlanks(args, start, length);
+			final Commands	cmd = Commands.lookup(args, start, verbEnd);
+			// Option parameters are passed as index range, so no strings are created for them
+			final int		parmStart = CommandArgs.skipBlanks(args, verbEnd, length);
+			final int		parmEnd = CommandArgs.skipTrailingBlanks(args, parmStart, length);
 
+			if (cmd == null) {
+				throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, args);
+			}
 			switch (cmd) {
 				case UTF8:
-					if ("ON".equalsIgnoreCase(parm) || "OFF".equalsIgnoreCase(parm)) {
-						isUTF8On = "ON".equalsIgnoreCase(parm); 
+					final boolean	on = CommandArgs.isKeyword(args, parmStart, parmEnd, "ON");
+					
+					if (on || CommandArgs.isKeyword(args, parmStart, parmEnd, "OFF")) {
+						isUTF8On = on; 
 						sendAnswer(MessageType.MSG_COMMAND_OK);
 					}
 					else {
-						throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, parm);
+						throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, args.substring(parmStart, parmEnd));
+					}
+					break;
+				case MLST:
+					sendAnswer(MessageType.MSG_MLST_OPTS, mlsd.selectFacts(args.substring(parmStart, parmEnd)));
+					break;
+				case MODE:
+					final long	level = CommandArgs.parseDeflateLevel(args, parmStart, parmEnd);
+					
+					if (level == CommandArgs.NOT_A_NUMBER || level > Deflater.BEST_COMPRESSION) {
+						throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, args.substring(parmStart, parmEnd));
+					}
+					else {
+						deflateLevel = (int)level;
+						sendAnswer(MessageType.MSG_MODE_Z_OPTS, deflateLevel);
 					}
 					break;
 				default :
@@ -650,6 +805,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 				debug("Failed to create new directory");
 			}
 			else {
+				invalidateListing(dir);
 				sendAnswer(MessageType.MSG_DIRECTORY_CREATED, getFileName(dir));
 			}
 		}
@@ -664,6 +820,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 
 			if (d.exists() && d.isDirectory()) {
 				if (d.delete()) {
+					invalidateListing(d);
 					sendAnswer(MessageType.MSG_DIRECTORY_REMOVED, getFileName(d));
 				}
 				else {
@@ -684,6 +841,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 
 			if (f.exists() && f.isFile()) {
 				if (f.delete()) {
+					invalidateListing(f);
 					sendAnswer(MessageType.MSG_FILE_REMOVED, getFileName(f));
 				}
 				else {
@@ -708,15 +866,27 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}
 
 	private void handleMode(final String mode) throws IOException {
-		if (Utils.checkEmptyOrNullString(mode) || !mode.matches("(S|B|C)")) {
+		final char	option = CommandArgs.parseOption(mode, "SBCZ");
+		
+		if (option == 0) {
 			throw new IllegalArgumentException(mode);
 		}
 		else {
-			switch(mode) {
-				case "B" : case "C" :	// TODO:
-					sendAnswer(MessageType.MSG_UNSUPPORTED_ARGUMENT, mode);
+			switch(option) {
+				case 'B' :
+					transmissionMode = TransmissionMode.BLOCK;
+					sendAnswer(MessageType.MSG_COMMAND_OK);
+					break;
+				case 'C' :
+					transmissionMode = TransmissionMode.COMPRESSED;
+					sendAnswer(MessageType.MSG_COMMAND_OK);
 					break;
-				case "S" :
+				case 'S' :
+					transmissionMode = TransmissionMode.STREAM;
+					sendAnswer(MessageType.MSG_COMMAND_OK);
+					break;
+				case 'Z' :
+					transmissionMode = TransmissionMode.DEFLATE;
 					sendAnswer(MessageType.MSG_COMMAND_OK);
 					break;
 				default :
@@ -725,12 +895,15 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}
   
-	private void handleRetr(final String file) throws IOException {
+	private void handleRetr(final String file, final long restart) throws IOException {
 		if (isFileNameValid(file)) {
 			final File f = getFileDesc(file);
 	
 			if (!f.exists() || !f.isFile() || !f.canRead()) {
-				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS);
+				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(f));
+			}
+			else if (restart > f.length()) {
+				sendAnswer(MessageType.MSG_INVALID_RESTART_POSITION, restart);
 			}
 			else if (future != null && !future.isDone()) {
 				sendAnswer(MessageType.MSG_STILL_RUNNING);
@@ -743,14 +916,14 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 				        sendAnswer(MessageType.MSG_OPEN_ASCII_CONN_FOR_FILE, f.getName());
 				
 				        debug("Starting file transmission of " + f.getName() + " in ASCII mode");
-				        copier = new DataCopier(f, new OutputStreamWriter(conn.getOutputStream()));
+				        copier = new DataCopier(f, restart, conn.getChannel(), true, transmissionMode, deflateLevel, recordStructure, bufferPool, zlibPool, null, null, deflatedCopies, transferChunkSize);
 				        future = startTransmission(copier);
 						break;
 					case BINARY:
 				        sendAnswer(MessageType.MSG_OPEN_BIN_CONN_FOR_FILE, f.getName());
 				
 				        debug("Starting file transmission of " + f.getName() + " in BINARY mode");
-				        copier = new DataCopier(f, conn.getOutputStream());
+				        copier = new DataCopier(f, restart, conn.getChannel(), false, transmissionMode, deflateLevel, recordStructure, bufferPool, zlibPool, contentCache, mappedFiles, deflatedCopies, transferChunkSize);
 				        future = startTransmission(copier);
 						break;
 					case UNKNOWN :
@@ -781,7 +954,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}  
 	
 	private void handleAllo(final String size) throws IOException {
-		if (Utils.checkEmptyOrNullString(size) || !size.matches("\\d+(\\s+R\\s+\\d+){0,1}")) {
+		if (Utils.checkEmptyOrNullString(size) || !CommandArgs.isAllocation(size)) {
 			throw new IllegalArgumentException(size);
 		}
 		else {
@@ -789,7 +962,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}  
   
-	private void handleStor(final String file, final boolean append, final boolean createUnique) throws IOException {
+	private void handleStor(final String file, final boolean append, final boolean createUnique, final long restart) throws IOException {
 		if (isFileNameValid(file)) {
 			if (future != null && !future.isDone()) {
 				sendAnswer(MessageType.MSG_STILL_RUNNING);
@@ -803,19 +976,24 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 				else {
 					f = temp;
 				}
+				if (restart > 0 && (!f.isFile() || restart > f.length())) {
+					sendAnswer(MessageType.MSG_INVALID_RESTART_POSITION, restart);
+					return;
+				}
+				invalidateListing(f);
 				switch (transferMode) {
 					case ASCII		:
 						sendAnswer(MessageType.MSG_OPEN_ASCII_CONN_FOR_FILE, f.getName());
 					
 			            debug("Start receiving file " + f.getName() + " in ASCII mode");
-				        copier = new DataCopier(new InputStreamReader(conn.getInputStream()), f, append);
+				        copier = new DataCopier(conn.getChannel(), f, restart, append, true, transmissionMode, deflateLevel, recordStructure, this::sendRestartMarker, bufferPool, zlibPool, transferChunkSize);
 				        future = startTransmission(copier);
 		            	break;						
 					case BINARY		:
 			            sendAnswer(MessageType.MSG_OPEN_BIN_CONN_FOR_FILE, f.getName());
 		
 			            debug("Start receiving file " + f.getName() + " in BINARY mode");
-				        copier = new DataCopier(conn.getInputStream(), f, append);
+				        copier = new DataCopier(conn.getChannel(), f, restart, append, false, transmissionMode, deflateLevel, recordStructure, this::sendRestartMarker, bufferPool, zlibPool, transferChunkSize);
 				        future = startTransmission(copier);
 			            break;
 					case UNKNOWN	:
@@ -832,7 +1010,16 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}
 
 	private void handleRest(final String displ) throws IOException {
-		sendAnswer(MessageType.MSG_COMMAND_IGNORED);
+		// RFC-3659 stream mode restart: marker is a byte offset in the file. Block and compressed mode markers sent and reported by the server are file offsets too
+		final long	offset = Utils.checkEmptyOrNullString(displ) ? CommandArgs.NOT_A_NUMBER : CommandArgs.parseNumber(displ, 18);
+		
+		if (offset == CommandArgs.NOT_A_NUMBER) {
+			throw new IllegalArgumentException(displ);
+		}
+		else {
+			restartOffset = offset;
+			sendAnswer(MessageType.MSG_RESTART_ACCEPTED, restartOffset);
+		}
 	}  
 
 	private void handleRnfr(final String file) throws IOException {
@@ -844,7 +1031,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			sendAnswer(MessageType.MSG_AWAITING_CONTINUATION);
 		}
 		else {
-			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS);
+			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(f));
 		}
 	}  
 
@@ -856,6 +1043,8 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 		else {
 			if (oldFile.renameTo(f)) {
+				invalidateListing(oldFile);
+				invalidateListing(f);
 				sendAnswer(MessageType.MSG_COMMAND_OK);
 			}
 			else {
@@ -882,26 +1071,34 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			});
 		}
 		else {
-			try {
-				final Commands	c = Commands.valueOf(name.trim().toUpperCase());
+			final Commands	c = Commands.lookup(name.trim());
 			  
+			if (c != null) {
 				sendAnswer(MessageType.MSG_COMMANDS_HELP, c.name(), c.getArgs(), c.getDescriptor());
-			} catch (IllegalArgumentException exc) {
+			}
+			else {
 				sendAnswer(MessageType.MSG_COMMANDS_HELP_MISSING, name);
 			}
 		}
 	}  
 
 	private void handleStru(final String parm) throws IOException {
-		if (Utils.checkEmptyOrNullString(parm) || !parm.matches("(F|R|P)")) {
+		final char	option = CommandArgs.parseOption(parm, "FRP");
+		
+		if (option == 0) {
 			throw new IllegalArgumentException(parm);
 		}
 		else {
-			switch (parm) {
-				case "F" : 
+			switch (option) {
+				case 'F' : 
+					recordStructure = false;
+					sendAnswer(MessageType.MSG_COMMAND_OK);
+					break;
+				case 'R' :
+					recordStructure = true;
 					sendAnswer(MessageType.MSG_COMMAND_OK);
 					break;
-				case "P" : case "R" :	// TODO:
+				case 'P' :	// TODO:
 					sendAnswer(MessageType.MSG_UNSUPPORTED_ARGUMENT, parm);
 					break;
 				default :
@@ -923,13 +1120,16 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}  
 
 	private void handleMlst(final String fileName) throws IOException {
-		final File		current = new File(root, fileName).getAbsoluteFile();
+		final File			current = new File(root, fileName).getAbsoluteFile();
+		final FileMetadata	meta = FileMetadata.of(current, names);
 		
-		if (!current.exists()) {
+		if (meta == null) {
 			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(current));
 		}
 		else {
-			sendBlock(MessageType.MSG_FILE_DESC_BEGIN, MessageType.MSG_FILE_DESC_END, new String[] {new MLSDResponse(current).getDescriptor()}, (v)->v);
+			final FileMetadata	parent = current.getParentFile() != null ? FileMetadata.of(current.getParentFile(), names) : null;
+			
+			sendBlock(MessageType.MSG_FILE_DESC_BEGIN, MessageType.MSG_FILE_DESC_END, new String[] {mlsd.getDescriptor(meta, parent != null && parent.isWritable()).toString()}, (v)->v);
 //			sendAnswer(MessageType.MSG_FILE_DESC_BEGIN);
 //			sendCommandLine(" "+new MLSDResponse(current).getDescriptor() + EOL);
 //			sendAnswer(MessageType.MSG_FILE_DESC_END);
@@ -941,49 +1141,56 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			sendAnswer(MessageType.MSG_NO_DATA_CONNECTION);
 		} 
 		else {
-			final File		current = new File(root, dirName).getAbsoluteFile();
+			final File			current = new File(root, dirName).getAbsoluteFile();
+			final FileMetadata	currentMeta = FileMetadata.of(current, names);
 			
-			if (!current.exists()) {
+			if (currentMeta == null) {
 				sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(current));
 			}
 			else {
-				final File[] 	dirContent = getDirContent(current);
-
+				// Listing depends on the facts selected by 'OPTS MLST', so only the default fact set can be cached 
 				sendAnswer(MessageType.MSG_OPEN_BINARY_CONN_FOR_LIST);
-				sendDataLine("type=cdir; .");
-				if (!getFileName(current).equals("/")) {
-					sendDataLine("type=pdir; ..");
-				}
-				if (dirContent != null) {
-					for (File content : dirContent) {
-						sendDataLine(new MLSDResponse(content).getDescriptor());
+				startDataTransfer();
+				sendListing(current, mlsd.isAllFactsSelected() ? ListingCache.Kind.MLSD : null, (s)->{
+					s.send("type=cdir; .");
+					if (!getFileName(current).equals("/")) {
+						s.send("type=pdir; ..");
 					}
-				}
-				sendAnswer(MessageType.MSG_TRANSFER_COMPLETED);
+					walkDirContent(current, (f)->{
+						final FileMetadata	meta = FileMetadata.of(f, names);
+						
+						if (meta != null) {
+							s.send(mlsd.getDescriptor(meta, currentMeta.isWritable()));
+						}
+					});
+				});
+				completeDataTransfer();
 				closeDataConnection();
 			}
 		}
 	}
 	
 	private void handleSize(final String file) throws IOException {
-		final File	f = getFileDesc(file);
+		final File			f = getFileDesc(file);
+		final FileMetadata	meta = FileMetadata.of(f, names);
 	  
-		if (f.exists() && f.isFile()) {
-			sendAnswer(MessageType.MSG_FILE_SIZE, f.length());
+		if (meta != null && meta.isRegularFile()) {
+			sendAnswer(MessageType.MSG_FILE_SIZE, meta.getSize());
 		}
 		else {
-			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS);
+			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(f));
 		}
 	}  
 
 	private void handleMdtm(final String file) throws IOException {
-		final File	f = getFileDesc(file);
+		final File			f = getFileDesc(file);
+		final FileMetadata	meta = FileMetadata.of(f, names);
 	  
-		if (f.exists() && f.isFile()) {
-			sendAnswer(MessageType.MSG_FILE_MODIFICATION_TIME, InternalUtils.milliseconds2Time(f.lastModified()));
+		if (meta != null && meta.isRegularFile()) {
+			sendAnswer(MessageType.MSG_FILE_MODIFICATION_TIME, formatter.formatTimestamp(meta.getLastModified()));
 		}
 		else {
-			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS);
+			sendAnswer(MessageType.MSG_FAILURE_FILE_NOT_EXISTS, getFileName(f));
 		}
 	}  
 
@@ -997,7 +1204,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}
 
-	private synchronized void sendAnswerSilent(final MessageType msg, final Object... parameters) {
+	private void sendAnswerSilent(final MessageType msg, final Object... parameters) {
 		try {
 			sendAnswer(msg, parameters);
 		} catch (IOException e) {
@@ -1005,70 +1212,133 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}
 	
-	private synchronized void sendAnswer(final MessageType msg, final Object... parameters) throws IOException {
-		final String	result = msg.getCode()+msg.getMessage().formatted(parameters);
-      
-		sendCommandLine(result);
-		controlOutWriter.flush();
+	private void sendAnswer(final MessageType msg, final Object... parameters) throws IOException {
+		answerLock.lock();
+		try {
+			if (debugMode) {
+				debug("Answer: "+ReplyWriter.formatReply(msg, parameters));
+			}
+			controlOut.writeReply(msg, parameters);
+			if (msg.getCode() < 200) {
+				// Preliminary reply precedes data transfer, so it can't wait for the end of the command batch 
+				controlOut.flush();
+			}
+		} finally {
+			answerLock.unlock();
+		}
 	}
 
-	private synchronized void sendCommandLine(final String line) throws IOException {
-		debug("Answer: "+line);
-		controlOutWriter.write(line);
+	private void sendCommandLine(final CharSequence line) throws IOException {
+		answerLock.lock();
+		try {
+			if (debugMode) {
+				debug("Answer: "+line);
+			}
+			controlOut.write(line);
+		} finally {
+			answerLock.unlock();
+		}
+	}  
+
+	private void sendBlockLine(final CharSequence line) throws IOException {
+		answerLock.lock();
+		try {
+			if (debugMode) {
+				debug("Answer:  "+line);
+			}
+			controlOut.write(' ');
+			controlOut.write(line);
+			controlOut.write('\r');
+			controlOut.write('\n');
+		} finally {
+			answerLock.unlock();
+		}
 	}  
 
-	private void sendDataLine(final String msg) throws IOException {
+	private void sendDataLine(final CharSequence msg) throws IOException {
 		if (!conn.isConnectionValid()) {
 			debug("Cannot send message, because no data connection is established");
 			sendAnswer(MessageType.MSG_NO_DATA_CONNECTION);
 		} else {
-			final Writer	wr = conn.getWriter();
-        
-			debug("Data: "+msg);
-			wr.write(msg);
-			wr.write(EOL);
+			if (debugMode) {
+				debug("Data: "+msg);
+			}
+			conn.getWriter().writeLine(msg);
 		}
 	}
 
-	private void sendDirContent(final File[] dirContent, final Sender sender) throws IOException {
-		sendAnswer(MessageType.MSG_OPEN_CONN_FOR_LIST);
+	private void startDataTransfer() throws IOException {
+		if (transmissionMode == TransmissionMode.DEFLATE && conn.isConnectionValid()) {
+			conn.getWriter().deflate(deflateLevel);
+		}
+	}
 
-		for (File content : dirContent) {
-			final Path		path = content.toPath();
-			final Set<PosixFilePermission> 	permissions = getFilePermissions(content);
-			final Calendar	cal = Calendar.getInstance();
-		  
-			cal.setTimeInMillis(content.lastModified());					  
-			sender.send("%1$c%2$c%3$c%4$c%5$c%6$c%7$c%8$c%9$c%10$c 1 %11$s %12$s %13$13d %14$3s %15$3d %16$02d:%17$02d %18$s".formatted(
-				  	content.isDirectory() ? 'd' : '-',
-				  	permissions.contains(PosixFilePermission.OWNER_READ) ? 'r' : '-',
-				  	permissions.contains(PosixFilePermission.OWNER_WRITE) ? 'w' : '-',
-				  	permissions.contains(PosixFilePermission.OWNER_EXECUTE) ? 'x' : '-',
-				  	permissions.contains(PosixFilePermission.GROUP_READ) ? 'r' : '-',
-				  	permissions.contains(PosixFilePermission.GROUP_WRITE) ? 'w' : '-',
-				  	permissions.contains(PosixFilePermission.GROUP_EXECUTE) ? 'x' : '-',
-				  	permissions.contains(PosixFilePermission.OTHERS_READ) ? 'r' : '-',
-				  	permissions.contains(PosixFilePermission.OTHERS_WRITE) ? 'w' : '-',
-				  	permissions.contains(PosixFilePermission.OTHERS_EXECUTE) ? 'x' : '-',
-				  	Files.getOwner(path).getName(),
-				  	getFileGroup(content),
-				  	content.length(),
-				  	cal.getDisplayName(Calendar.MONTH, Calendar.SHORT, Locale.ENGLISH),
-				  	cal.get(Calendar.DAY_OF_MONTH),
-				  	cal.get(Calendar.HOUR_OF_DAY),
-				  	cal.get(Calendar.MINUTE),
-				  	content.getName()
-				  ));
+	private void completeDataTransfer() throws IOException {
+		// Buffered tail of the data (and the end of zlib stream) must reach the client before the transfer completion reply
+		if (conn.isConnectionValid()) {
+			conn.getWriter().finish();
 		}
 		sendAnswer(MessageType.MSG_TRANSFER_COMPLETED);
 	}
+
+	private void sendDirContent(final File current, final Sender sender) throws IOException {
+		sendAnswer(MessageType.MSG_OPEN_CONN_FOR_LIST);
+		formatDirContent(current, sender);
+		sendAnswer(MessageType.MSG_TRANSFER_COMPLETED);
+	}
+
+	private void sendListing(final File current, final ListingCache.Kind kind, final ListingProducer producer) throws IOException {
+		if (listingCache == null || kind == null || !current.isDirectory()) {
+			producer.produce(this::sendDataLine);
+		}
+		else {
+			final byte[]	cached = listingCache.get(current, kind);
+			
+			if (cached != null) {
+				debug("Data: cached listing of "+current.getAbsolutePath());
+				conn.getWriter().writeEncoded(cached);
+			}
+			else {
+				final long			stamp = listingCache.prepare(current);
+				final StringBuilder	sb = new StringBuilder();
+				final int			limit = listingCache.getMaxPayloadSize();
+				
+				producer.produce((line)->{
+					sendDataLine(line);
+					if (sb.length() <= limit) {
+						sb.append(line).append(EOL);
+					}
+				});
+				// Every char is encoded into one byte at least, so listings over the limit in chars are not encoded at all. Bytes are checked by the cache
+				if (sb.length() <= limit) {
+					listingCache.put(current, kind, stamp, sb.toString().getBytes(conn.getWriter().getCharset()));
+				}
+			}
+		}
+	}
+
+	private void formatDirContent(final File current, final Sender sender) throws IOException {
+		walkDirContent(current, (content)->{
+			final FileMetadata	meta = FileMetadata.of(content, names);
+			
+			if (meta == null) {
+				return;
+			}
+			sender.send(formatter.formatList(meta));
+		});
+	}
   
 	private void clearSettings() {
 		this.currDirectory = "/";
 		this.transferMode = TransferType.UNKNOWN;
+		this.transmissionMode = TransmissionMode.STREAM;
+		this.deflateLevel = DEFAULT_DEFLATE_LEVEL;
+		this.recordStructure = false;
 		this.currentLoggingStatus = LoggingStatus.NOTLOGGEDIN;
 		this.currentUser = null;
 		this.oldFile = null;
+		this.restartOffset = 0;
+		this.mlsd.reset();
 	}
   
 	private boolean isFileNameValid(final String args) {
@@ -1112,49 +1382,14 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		}
 	}
 
-	private Set<PosixFilePermission> getFilePermissions(final File file) throws IOException {
-		final Path	path = file.toPath();
-	  
-		try {
-			return Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
-		} catch (UnsupportedOperationException exc) {
-			final Set<PosixFilePermission>	result = new HashSet<>();
-		  
-			if (file.canRead()) {
-				result.add(PosixFilePermission.OWNER_READ);
-				result.add(PosixFilePermission.GROUP_READ);
-				result.add(PosixFilePermission.OTHERS_READ);
-			}
-			if (file.canWrite()) {
-				result.add(PosixFilePermission.OWNER_WRITE);
-				result.add(PosixFilePermission.GROUP_WRITE);
-				result.add(PosixFilePermission.OTHERS_WRITE);
-			}
-			if (file.canExecute()) {
-				result.add(PosixFilePermission.OWNER_EXECUTE);
-				result.add(PosixFilePermission.GROUP_EXECUTE);
-				result.add(PosixFilePermission.OTHERS_EXECUTE);
-			}
-			return result;
-		}
-	}
-
-	private String getFileGroup(final File file) throws IOException {
-		final Path	path = file.toPath();
-	  
-		try {
-			return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS).group().getName();
-		} catch (UnsupportedOperationException exc) {
-			return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
-		}
-	}  
-
 	private SocketAddress openDataConnectionPassive(final int port) {
 		conn.close();
 		return conn.openPassive(port);
 	}
 
-	private void waitDataConnectionPassive(final int port) {
+	private void waitDataConnectionPassive(final int port) throws IOException {
+		// Client can't connect until it gets passive mode reply
+		flushAnswers();
 		conn.waitPassive(port);
 	}
   
@@ -1188,24 +1423,51 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			} catch (Throwable e) {
 				sendAnswerSilent(MessageType.MSG_ABORT_DATA_CONNECTION);
 			} finally {
+	        	if (copier.isStore()) {
+	        		// Listings cached while the file was being stored have stale size and time, so they are dropped before the reply is sent
+	        		try {
+	        			invalidateListing(copier.file);
+	        		} catch (IOException e) {
+	        			debug("Listing invalidation error: "+e.getLocalizedMessage());
+	        		}
+	        	}
 	        	closeDataConnection();
+	        	try {
+		        	flushAnswers();
+				} catch (IOException e) {
+					debug("Send error: "+e.getLocalizedMessage());
+				}
 			}
         });
 	}
 	
-	private File[] getDirContent(final File current) {
-		if (current.exists()) {
-			if (current.isDirectory()) {
-				final File[] items = current.listFiles();
-		    	
-				return items == null ? EMPTY_FILE_ARRAY : items; 
-			}
-			else {
-				return new File[] {current};
+	private void sendRestartMarker(final String marker, final long position) throws IOException {
+		// RFC959, part 4.2: 110 MARK yyyy = mmmm, where yyyy is the user-process marker and mmmm is the server one (file offset)
+		sendAnswer(MessageType.MSG_RESTART_MARKER, marker, position);
+	}
+
+	private void invalidateListing(final File changed) throws IOException {
+		// Watch service events are asynchronous, so changes made by the session itself are dropped from the cache immediately
+		if (listingCache != null && changed.getParentFile() != null) {
+			listingCache.invalidate(changed.getParentFile());
+		}
+	}
+
+	private void walkDirContent(final File current, final FileProcessor processor) throws IOException {
+		if (current.isDirectory()) {
+			// Directory stream reads entries lazily, so huge directories are listed in bounded memory
+			try(final DirectoryStream<Path>	ds = Files.newDirectoryStream(current.toPath())) {
+				for (Path item : ds) {
+					processor.process(item.toFile());
+				}
+			} catch (AccessDeniedException exc) {
+				return;
+			} catch (DirectoryIteratorException exc) {
+				throw exc.getCause();
 			}
 		}
-		else {
-			return null;
+		else if (current.exists()) {
+			processor.process(current);
 		}
 	}
 
@@ -1215,7 +1477,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			final String	val = formatter.apply(item);
 			
 			if (val != null) {
-				sendCommandLine(' ' + val + EOL);
+				sendBlockLine(val);
 			}
 		}
 		sendAnswer(endBlock);
@@ -1227,13 +1489,16 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			final String	val = formatter.apply(item);
 			
 			if (val != null) {
-				sendCommandLine(' ' + val + EOL);
+				sendBlockLine(val);
 			}
 		}
 		sendAnswer(endBlock);
 	}
 	
 	static class RepresentationTypeDescriptor {
+		private static final RepresentationTypeDescriptor	ASCII = new RepresentationTypeDescriptor(TransferType.ASCII, '0');
+		private static final RepresentationTypeDescriptor	BINARY = new RepresentationTypeDescriptor(TransferType.BINARY, '0');
+		
 		private final TransferType	type;
 		private final char	modifier;
 
@@ -1251,63 +1516,101 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			if (Utils.checkEmptyOrNullString(type)) {
 				throw new IllegalArgumentException("Representation type string can't be null or empty");
 			}
-			else if (type.matches("((A|E|I)(\\s+(N|T|C)){0,1}|L\\s+\\d+)")) {
-				final String[]	modes = type.split("\\s+");
-			  
-				switch (modes[0].charAt(0)) {
-					case 'A' :   
-						if (modes.length > 1) {
-							switch (modes[1]) {
-								case "N" :
-					  				return new RepresentationTypeDescriptor(TransferType.ASCII, '0');
-								case "T" : case "C" : // TODO:
-					  				throw new CommandParserException(MessageType.MSG_UNSUPPORTED_ARGUMENT, type);
-								default :
-									throw new UnsupportedOperationException("'A' mode argument ["+modes[1]+"] is not suoported yet");
-							}
+			else {
+				// Syntax is ((A|E|I)(\s+(N|T|C))?|L\s+\d+)
+				final int	length = type.length();
+				final int	parmStart = CommandArgs.skipBlanks(type, 1, length);
+				
+				if (parmStart == 1 && length > 1) {
+			  		throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, type);
+				}
+				// Type and format codes are case-insensitive, so they are compared as options
+				final char	code = CommandArgs.parseOption(type, 0, 1, "AEIL");
+				final char	format = parmStart < length ? CommandArgs.parseOption(type, parmStart, length, "NTC") : 0;
+				
+				switch (code) {
+					case 'A' : case 'E' : case 'I' :
+						if (parmStart < length && format == 0) {
+					  		throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, type);
+						}
+						else if (code == 'E' || code == 'A' && format != 0 && format != 'N') {	// TODO:
+					  		throw new CommandParserException(MessageType.MSG_UNSUPPORTED_ARGUMENT, type);
 						}
 						else {
-			  				return new RepresentationTypeDescriptor(TransferType.ASCII, '0');
+							return code == 'A' ? ASCII : BINARY;
+						}
+					case 'L' :
+						final long	byteSize = CommandArgs.parseNumber(type, parmStart, length, 9);
+						
+						if (parmStart == length || byteSize == CommandArgs.NOT_A_NUMBER) {
+					  		throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, type);
 						}
-					case 'I' :   
-		  				return new RepresentationTypeDescriptor(TransferType.BINARY, '0');
-					case 'L' : 
-		  				if (Integer.parseInt(modes[1]) != 8) {
+						else if (byteSize != 8) {
 					  		throw new CommandParserException(MessageType.MSG_UNSUPPORTED_ARGUMENT, type);
 		  				}
 		  				else {
-			  				return new RepresentationTypeDescriptor(TransferType.BINARY, '0');
+			  				return BINARY;
 		  				}
-				  	case 'E' : 
-				  		throw new CommandParserException(MessageType.MSG_UNSUPPORTED_ARGUMENT, type);
 				  	default :
 				  		throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, type);
 				}
 			}
-			else {
-		  		throw new CommandParserException(MessageType.MSG_ILLEGAL_ARGUMENT, type);
-			}
 		}
 	}
 	
+	/**
+	 * Control connection input stream. Replies of the pipelined commands are queued while the next commands are available
+	 * in the input, and are flushed once before the stream blocks for new input.
+	 */
+	private class ReplyFlushingInputStream extends FilterInputStream {
+		private ReplyFlushingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (in.available() <= 0) {
+				flushAnswers();
+			}
+			return in.read();
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (in.available() <= 0) {
+				flushAnswers();
+			}
+			return in.read(b, off, len);
+		}
+	}
+
 	private class DataConnection {
 		private ConnectionMode	mode = ConnectionMode.NONE;
 		private ServerSocket 	dataSocket;
 		private Socket 			dataConnection;
-		private OutputStream	os;
-		private Writer			writer;
+		private SocketChannel	dataChannel;
+		private final DataChannelWriter	writer = new DataChannelWriter(bufferPool, zlibPool, DATA_BUFFER_SIZE, DATA_FLUSH_THRESHOLD, Charset.defaultCharset());
 		
 		boolean openActive(final String ipAddress, final int port) {
 			if (mode == ConnectionMode.NONE) {
 				try {
-					dataConnection = new Socket(ipAddress, port);
-					os = dataConnection.getOutputStream();
-					writer = new OutputStreamWriter(os);
+					// Client can be unreachable, so connection is bounded by timeout to release the thread
+					dataChannel = SocketChannel.open();
+					dataChannel.socket().connect(new InetSocketAddress(ipAddress, port), DATA_CONNECTION_TIMEOUT);
+					dataConnection = dataChannel.socket();
+					writer.attach(dataChannel);
 					mode = ConnectionMode.ACTIVE;
 					debug("Data connection - Active Mode - established");
 					return true;
 				} catch (IOException e) {
 					debug("Could not connect to client data socket");
+					if (dataChannel != null) {
+						try {
+							dataChannel.close();
+						} catch (IOException exc) {
+						}
+						dataChannel = null;
+					}
 					return false;
 				}
 			}
@@ -1319,7 +1622,7 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		SocketAddress openPassive(final int port) {
 			if (mode == ConnectionMode.NONE) {
 				try {
-					dataSocket = new ServerSocket(port);
+					dataSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 					return new InetSocketAddress(controlSocket.getLocalAddress(), dataSocket.getLocalPort());
 				} catch (IOException e) {
 					debug("Could not create data connection (port "+port+")");
@@ -1334,14 +1637,22 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		void waitPassive(final int port) {
 			if (mode == ConnectionMode.NONE) {
 				try {
+					// Client can never connect after passive mode reply, so waiting is bounded by timeout to release the thread.
+					// Socket adaptor is used, because ServerSocketChannel.accept() ignores the timeout
+					dataSocket.setSoTimeout(DATA_CONNECTION_TIMEOUT);
 					dataConnection = dataSocket.accept();
-					os = dataConnection.getOutputStream();
-					writer = new OutputStreamWriter(os);
+					dataChannel = dataConnection.getChannel();
+					writer.attach(dataChannel);
 					mode = ConnectionMode.PASSIVE;
 					dataSocket.close();
 					debug("Data connection - Passive Mode - established");
 				} catch (IOException e) {
 					debug("Could not create data connection (port "+port+")");
+					dataConnection = null;
+					try {
+						dataSocket.close();
+					} catch (IOException exc) {
+					}
 				}
 			}
 			else {
@@ -1353,25 +1664,16 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			return dataConnection != null && !dataConnection.isClosed();	  
 		}
 	
-		InputStream getInputStream() throws IOException {
-			if (mode == ConnectionMode.NONE) {
-				throw new IllegalStateException("Attempt to get stream on closed socket"); 
-			}
-			else {
-				return dataConnection.getInputStream();
-			}
-		}
-	
-		OutputStream getOutputStream() throws IOException {
+		SocketChannel getChannel() {
 			if (mode == ConnectionMode.NONE) {
-				throw new IllegalStateException("Attempt to get stream on closed socket"); 
+				throw new IllegalStateException("Attempt to get channel on closed socket"); 
 			}
 			else {
-				return os;
+				return dataChannel;
 			}
 		}
 	
-		Writer getWriter() {
+		DataChannelWriter getWriter() {
 			if (mode == ConnectionMode.NONE) {
 				throw new IllegalStateException("Attempt to get stream on closed socket"); 
 			}
@@ -1382,19 +1684,32 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	  
 		void close() {
 			if (mode!= ConnectionMode.NONE) {
+				mode = ConnectionMode.NONE;
 				try {
-					mode = ConnectionMode.NONE;
-					writer.flush();
-					writer.close();
-					dataConnection.close();
-					dataConnection = null;
-					if (dataSocket != null && !dataSocket.isClosed()) {
-						dataSocket.close();
+					// Pending content can't be flushed when the client has reset the connection, but sockets must be closed anyway
+					writer.detach();
+				} catch (IOException e) {
+					debug("Could not flush data connection: "+e.getLocalizedMessage());
+				} finally {
+					try {
+						if (dataConnection != null) {
+							dataConnection.close();
+						}
+					} catch (IOException e) {
+						debug("Could not close data connection: "+e.getLocalizedMessage());
+					} finally {
+						dataConnection = null;
+						dataChannel = null;
+					}
+					try {
+						if (dataSocket != null && !dataSocket.isClosed()) {
+							dataSocket.close();
+						}
+					} catch (IOException e) {
+						debug("Could not close data socket: "+e.getLocalizedMessage());
+					} finally {
 						dataSocket = null;
 					}
-				} catch (IOException e) {
-					debug("Could not close data connection");
-					e.printStackTrace();
 				}
 			}
 		}
@@ -1405,61 +1720,76 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 		private static final int	OP_RETR_ASCII = 1;
 		private static final int	OP_STOR_BIN = 2;
 		private static final int	OP_STOR_ASCII = 3;
+		private static final int	OP_RETR_ENCODED = 4;
+		private static final int	OP_STOR_DECODED = 5;
+		private static final int	OP_RETR_DEFLATED = 6;
+		private static final int	ASCII_BUFFER_SIZE = 64 * 1024;
+		private static final int	BLOCK_BUFFER_SIZE = 64 * 1024;
+		private static final long	RESTART_MARKER_INTERVAL = 16 * 1024 * 1024;
+		private static final boolean	NEED_ASCII_TRANSLATION = !EOL.equals(System.lineSeparator());
 		private static final AtomicInteger	UNIQUE = new AtomicInteger(1);
 	  
 		private final int				operation;
+		private final boolean			ascii;
+		private final TransmissionMode	mode;
+		private final int				level;
+		private final boolean			record;
+		private final byte				filler;
+		private final RestartMarkerListener	listener;
 		private final int				unique = UNIQUE.incrementAndGet();
-		private final InputStream		is;
-		private final Reader			rdr;
-		private final OutputStream		os;
-		private final Writer			wr;
+		private final ReadableByteChannel	rch;
+		private final WritableByteChannel	wch;
 		private final File				file;
+		private final long				position;
 		private final boolean			append;
+		private final BufferPool		pool;
+		private final ZlibPool			zlib;
+		private final ContentCache		cache;
+		private final MappedFileRegistry	mapped;
+		private final DeflatedCopyRegistry	copies;
+		private final int				chunkSize;
 		private volatile long			total = 0;
 		private volatile long			processed = 0;
 		private volatile boolean		terminate = false;
 		private volatile boolean		processing = false;
 		private volatile boolean		error = false;
 	  
-		private DataCopier(final InputStream from, final File to, final boolean append) {
+		private DataCopier(final ReadableByteChannel from, final File to, final long position, final boolean append, final boolean ascii, final TransmissionMode mode, final int level, final boolean record, final RestartMarkerListener listener, final BufferPool pool, final ZlibPool zlib, final int chunkSize) {
 			if (from == null) {
 				throw new NullPointerException("From parameter can't be null");
 			}
 			else if (to == null) {
 				throw new NullPointerException("To parameter can't be null");
 			}
-			else {
-				this.operation = OP_STOR_BIN;
-				this.is = from;
-				this.rdr = null;
-				this.os = null;
-				this.wr = null;
-				this.file = to;
-				this.append = append;
-				prepare();
-			}
-		}
-
-		private DataCopier(final Reader from, final File to, final boolean append) {
-			if (from == null) {
-				throw new NullPointerException("From parameter can't be null");
-			}
-			else if (to == null) {
-				throw new NullPointerException("To parameter can't be null");
+			else if (listener == null) {
+				throw new NullPointerException("Restart marker listener can't be null");
 			}
 			else {
-				this.operation = OP_STOR_ASCII;
-				this.is = null;
-				this.rdr = from;
-				this.os = null;
-				this.wr = null;
+				this.operation = mode != TransmissionMode.STREAM || record ? OP_STOR_DECODED : (ascii && NEED_ASCII_TRANSLATION ? OP_STOR_ASCII : OP_STOR_BIN);
+				// Record structure carries line ends as record ends, so content is not translated
+				this.ascii = ascii && NEED_ASCII_TRANSLATION && !record;
+				this.mode = mode;
+				this.level = level;
+				this.record = record;
+				// RFC959 part 3.4.3: filler is space for TYPE A and zero for TYPE I
+				this.filler = ascii ? (byte)' ' : 0;
+				this.listener = listener;
+				this.rch = from;
+				this.wch = null;
 				this.file = to;
+				this.position = position;
 				this.append = append;
+				this.pool = pool;
+				this.zlib = zlib;
+				this.cache = null;
+				this.mapped = null;
+				this.copies = null;
+				this.chunkSize = chunkSize;
 				prepare();
 			}
 		}
-	  
-		private DataCopier(final File from, final OutputStream to) {
+
+		private DataCopier(final File from, final long position, final WritableByteChannel to, final boolean ascii, final TransmissionMode mode, final int level, final boolean record, final BufferPool pool, final ZlibPool zlib, final ContentCache cache, final MappedFileRegistry mapped, final DeflatedCopyRegistry copies, final int chunkSize) {
 			if (from == null) {
 				throw new NullPointerException("From parameter can't be null");
 			}
@@ -1467,44 +1797,63 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 				throw new NullPointerException("To parameter can't be null");
 			}
 			else {
-				this.operation = OP_RETR_BIN;
-				this.is = null;
-				this.rdr = null;	
-				this.os = to;
-				this.wr = null;
+				// Record structure carries line ends as record ends, so content is not translated
+				this.ascii = ascii && NEED_ASCII_TRANSLATION && !record;
+				if (mode == TransmissionMode.DEFLATE && copies != null && !this.ascii && !record && position == 0) {
+					// Compressed copy is the zlib stream of the whole untranslated content, so it is useless for the other transfers
+					this.operation = OP_RETR_DEFLATED;
+				}
+				else {
+					this.operation = mode != TransmissionMode.STREAM || record ? OP_RETR_ENCODED : (ascii && NEED_ASCII_TRANSLATION ? OP_RETR_ASCII : OP_RETR_BIN);
+				}
+				this.mode = mode;
+				this.level = level;
+				this.record = record;
+				// RFC959 part 3.4.3: filler is space for TYPE A and zero for TYPE I
+				this.filler = ascii ? (byte)' ' : 0;
+				this.listener = null;
+				this.rch = null;
+				this.wch = to;
 				this.file = from;
+				this.position = position;
 				this.append = false;
+				this.pool = pool;
+				this.zlib = zlib;
+				this.cache = cache;
+				this.mapped = mapped;
+				this.copies = copies;
+				this.chunkSize = chunkSize;
 				prepare();
 			}
 		}
 
-		private DataCopier(final File from, final Writer to) {
-			if (from == null) {
-				throw new NullPointerException("From parameter can't be null");
-			}
-			else if (to == null) {
-				throw new NullPointerException("To parameter can't be null");
-			}
-			else {
-				this.operation = OP_RETR_ASCII;
-				this.is = null;
-				this.rdr = null;
-				this.os = null;
-				this.wr = to;
-				this.file = from;
-				this.append = false;
-				prepare();
-			}
+		boolean isStore() {
+			return operation == OP_STOR_BIN || operation == OP_STOR_ASCII || operation == OP_STOR_DECODED;
 		}
-	  
+
 		@Override
 		public void run() {
 			switch (operation) {
 			  	case OP_RETR_BIN	:
 			  		start("", file.length());
-			  		try(final InputStream	from = new FileInputStream(file)) {
+			  		try {
+			  			final ByteBuffer	content = cache != null ? cache.get(file) : null;
 			  			
-			  			processed = Utils.copyStream(from, os, this);
+			  			if (content != null) {
+			  				processed = transferTo(content, position, wch, 0);
+			  			}
+			  			else if (mapped != null) {
+			  				try(final MappedFileRegistry.Lease	lease = mapped.acquire(file)) {
+			  					
+			  					processed = transferTo(lease, position, wch);
+			  				}
+			  			}
+			  			else {
+					  		try(final FileChannel	from = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					  			
+					  			processed = transferTo(from, position, wch);
+					  		}
+			  			}
 					} catch (IOException e) {
 						error = true;
 					}
@@ -1512,10 +1861,10 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			  		break;
 			  	case OP_RETR_ASCII	:
 			  		start("", file.length());
-			  		try(final InputStream	from = new FileInputStream(file);
-			  			final Reader		fromR = new InputStreamReader(from)) {
+			  		try(final FileChannel	from = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
 			  			
-			  			processed = Utils.copyStream(fromR, wr, this);
+			  			from.position(position);
+			  			processed = translate(from, wch, new AsciiCodec(true));
 					} catch (IOException e) {
 						error = true;
 					}
@@ -1523,9 +1872,9 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			  		break;
 			  	case OP_STOR_BIN	:
 			  		start("");
-			  		try(final OutputStream	to = new FileOutputStream(file, append)) {
+			  		try(final FileChannel	to = openTarget()) {
 			  			
-			  			processed = Utils.copyStream(is, to, this);
+			  			processed = transferFrom(rch, to, to.position());
 					} catch (IOException e) {
 						error = true;
 			  		}
@@ -1533,12 +1882,59 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			  		break;
 			  	case OP_STOR_ASCII	:
 			  		start("");
-			  		try(final OutputStream	to = new FileOutputStream(file, append);
-			  			final Writer		toW = new OutputStreamWriter(to)) {
+			  		try(final FileChannel	to = openTarget()) {
+			  			
+			  			processed = translate(rch, to, new AsciiCodec(false));
+					} catch (IOException e) {
+						error = true;
+			  		}
+			  		end();
+			  		break;
+			  	case OP_RETR_ENCODED	:
+			  		start("", file.length());
+			  		try {
+			  			processed = retrieveEncoded();
+					} catch (IOException e) {
+						error = true;
+					}
+			  		end();
+			  		break;
+			  	case OP_RETR_DEFLATED	:
+			  		start("", file.length());
+			  		try(final FileChannel	from = copies.open(file)) {
 			  			
-			  			processed = Utils.copyStream(rdr, toW, this);
+			  			if (from != null) {
+			  				// Compressed copy is the complete zlib stream, so it is sent as is and can use sendfile(2)
+			  				transferTo(from, DeflatedCopyRegistry.HEADER_SIZE, wch);
+			  				// Copy is checked to be built from the current file content, so file bytes are reported as the on-the-fly deflating does
+			  				processed = file.length();
+			  			}
+			  			else {
+			  				processed = retrieveEncoded();
+			  				copies.downloaded(file);
+			  			}
 					} catch (IOException e) {
 						error = true;
+					}
+			  		end();
+			  		break;
+			  	case OP_STOR_DECODED	:
+			  		start("");
+			  		final Inflater	inflater = mode == TransmissionMode.DEFLATE ? zlib.acquireInflater() : null;
+			  		final InputStream	is = Channels.newInputStream(rch);
+			  		final ZlibInputStream	inflated = inflater != null ? new ZlibInputStream(is, inflater, pool) : null;
+			  		final InputStream	decoder = newDecoder(inflated != null ? inflated : is);
+			  		
+			  		try(final FileChannel	to = openTarget()) {
+			  			processed = decode(decoder, to, ascii ? new AsciiCodec(false) : null);
+					} catch (IOException e) {
+						error = true;
+			  		} finally {
+			  			// Decoders return their buffers to the pool on close, data channel is closed by the session
+			  			closeCodecs(decoder != is ? decoder : null, inflated);
+						if (inflater != null) {
+							zlib.release(inflater);
+						}
 			  		}
 			  		end();
 			  		break;
@@ -1574,6 +1970,309 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 			this.processing = false;
 		}
 	  
+		private long transferTo(final FileChannel from, final long position, final WritableByteChannel to) throws IOException {
+			final long	size = from.size();
+			long		current = position;
+			
+			// transferTo() can use sendfile(2) where available, so file content doesn't pass through the Java heap
+			while (current < size) {
+				final long	count = from.transferTo(current, Math.min(chunkSize, size - current), to);
+				
+				if (count == 0 && current >= from.size()) {
+					break;
+				}
+				current += count;
+				processed = current - position;
+				if (!processed(processed)) {
+					throw new InterruptedIOException("Transmission cancelled");
+				}
+			}
+			return current - position;
+		}
+	  
+		private long transferTo(final MappedFileRegistry.Lease from, final long position, final WritableByteChannel to) throws IOException {
+			long		current = position;
+			
+			for (int index = (int)(position / MappedFileRegistry.REGION_SIZE); index < from.getRegionCount(); index++) {
+				final long	regionStart = index * MappedFileRegistry.REGION_SIZE;
+				
+				current += transferTo(from.getRegion(index), current - regionStart, to, current - position);
+			}
+			return current - position;
+		}
+
+		private long transferTo(final ByteBuffer from, final long position, final WritableByteChannel to, final long alreadyProcessed) throws IOException {
+			final int	limit = from.limit();
+			
+			from.position((int)Math.min(position, limit));
+			while (from.hasRemaining()) {
+				from.limit(Math.min(from.position() + chunkSize, limit));
+				while (from.hasRemaining()) {
+					to.write(from);
+				}
+				from.limit(limit);
+				processed = alreadyProcessed + from.position() - position;
+				if (!processed(processed)) {
+					throw new InterruptedIOException("Transmission cancelled");
+				}
+			}
+			return limit - position;
+		}
+	  
+		private long transferFrom(final ReadableByteChannel from, final FileChannel to, final long position) throws IOException {
+			long		current = position;
+			
+			for (;;) {
+				final long	count = to.transferFrom(from, current, chunkSize);
+				
+				if (count <= 0) {
+					break;
+				}
+				current += count;
+				processed = current - position;
+				if (!processed(processed)) {
+					throw new InterruptedIOException("Transmission cancelled");
+				}
+			}
+			return current - position;
+		}
+	  
+		private long translate(final ReadableByteChannel from, final WritableByteChannel to, final AsciiCodec codec) throws IOException {
+			final ByteBuffer	in = pool.acquire(ASCII_BUFFER_SIZE);
+			final ByteBuffer	out = pool.acquire(ASCII_BUFFER_SIZE);
+			boolean				eof = false;
+			long				current = 0;
+			
+			try {
+				while (!eof || in.position() > 0) {
+					if (!eof && from.read(in) < 0) {
+						eof = true;
+					}
+					in.flip();
+					codec.translate(in, out);
+					in.compact();
+					current += drain(out, to);
+					processed = current;
+					if (!processed(processed)) {
+						throw new InterruptedIOException("Transmission cancelled");
+					}
+				}
+				codec.finish(out);
+				return current + drain(out, to);
+			} finally {
+				pool.release(in);
+				pool.release(out);
+			}
+		}
+
+		private long retrieveEncoded() throws IOException {
+			final Deflater	deflater = mode == TransmissionMode.DEFLATE ? zlib.acquireDeflater(level) : null;
+			final OutputStream	os = Channels.newOutputStream(wch);
+			final ZlibOutputStream	deflated = deflater != null ? new ZlibOutputStream(os, deflater, pool) : null;
+			final OutputStream	encoder = newEncoder(deflated != null ? deflated : os);
+			boolean				completed = false;
+			
+			try(final FileChannel	from = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				from.position(position);
+				
+				final long		result = encode(from, encoder, ascii ? new AsciiCodec(true) : null);
+				
+				// Encoder is closed on success only, because closing sends EOF to the receiver
+				encoder.close();
+				if (deflated != null) {
+					// Record encoder doesn't close the nested stream, so zlib stream is completed here (no-op if it's closed already)
+					deflated.close();
+				}
+				completed = true;
+				return result;
+			} finally {
+				if (!completed) {
+					// Data channel is broken first, so encoders return their buffers to the pool, but EOF doesn't reach the receiver
+					wch.close();
+					closeCodecs(encoder != os ? encoder : null, deflated);
+				}
+				if (deflater != null) {
+					zlib.release(deflater);
+				}
+			}
+		}
+
+		private OutputStream newEncoder(final OutputStream os) {
+			final OutputStream	framed;
+			
+			switch (mode) {
+				case STREAM		:
+				case DEFLATE	:
+					// 'MODE Z' content is the stream mode content compressed by the caller
+					framed = os;
+					break;
+				case BLOCK		:
+					framed = new BlockOutputStream(os, pool);
+					break;
+				case COMPRESSED	:
+					framed = new CompressedOutputStream(os, filler, pool);
+					break;
+				default :
+					throw new UnsupportedOperationException("Transmission mode ["+mode+"] is not supported yet");
+			}
+			return record ? new RecordOutputStream(framed, pool) : framed;
+		}
+
+		private InputStream newDecoder(final InputStream is) {
+			// Block and compressed decoders return record ends as line separators by themselves
+			switch (mode) {
+				case STREAM		:
+				case DEFLATE	:
+					return record ? new RecordInputStream(is, pool) : is;
+				case BLOCK		:
+					return new BlockInputStream(is);
+				case COMPRESSED	:
+					return new CompressedInputStream(is, filler, pool);
+				default :
+					throw new UnsupportedOperationException("Transmission mode ["+mode+"] is not supported yet");
+			}
+		}
+
+		private long encode(final FileChannel from, final OutputStream to, final AsciiCodec codec) throws IOException {
+			final ByteBuffer	in = pool.acquireHeap(BLOCK_BUFFER_SIZE);
+			final ByteBuffer	out = codec != null ? pool.acquireHeap(BLOCK_BUFFER_SIZE) : null;
+			long				current = 0, nextMarker = RESTART_MARKER_INTERVAL;
+			
+			try {
+				while (from.read(in) >= 0) {
+					in.flip();
+					if (codec == null) {
+						to.write(in.array(), in.arrayOffset(), in.limit());
+					}
+					else {
+						while (in.hasRemaining()) {
+							codec.translate(in, out);
+							to.write(out.array(), out.arrayOffset(), out.position());
+							out.clear();
+						}
+					}
+					current += in.limit();
+					in.clear();
+					// Restart marker is the file offset, so it can be passed to REST as is. Translated content and records have no such offsets
+					if (codec == null && to instanceof FramedOutputStream && current >= nextMarker) {
+						((FramedOutputStream)to).writeRestartMarker(Long.toString(position + current).getBytes(StandardCharsets.US_ASCII));
+						nextMarker = current + RESTART_MARKER_INTERVAL;
+					}
+					processed = current;
+					if (!processed(processed)) {
+						throw new InterruptedIOException("Transmission cancelled");
+					}
+				}
+				if (codec != null) {
+					codec.finish(out);
+					to.write(out.array(), out.arrayOffset(), out.position());
+				}
+				return current;
+			} finally {
+				pool.release(in);
+				if (out != null) {
+					pool.release(out);
+				}
+			}
+		}
+
+		private long decode(final InputStream from, final FileChannel to, final AsciiCodec codec) throws IOException {
+			final ByteBuffer	in = pool.acquireHeap(BLOCK_BUFFER_SIZE);
+			final ByteBuffer	out = codec != null ? pool.acquire(BLOCK_BUFFER_SIZE) : null;
+			final long			start = to.position();
+			long				current = 0;
+			
+			try {
+				for (;;) {
+					final int	count;
+					
+					try {
+						count = from.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+					} catch (RestartMarkerDetectedException exc) {
+						// Content received before the marker is stored first, so the marker refers to the current file size
+						store(in, to, codec, out);
+						listener.markerReceived(new String(exc.getRestartMarker(), StandardCharsets.US_ASCII), to.position());
+						continue;
+					}
+					if (count < 0) {
+						break;
+					}
+					in.position(in.position() + count);
+					if (!in.hasRemaining()) {
+						store(in, to, codec, out);
+					}
+					processed = current += count;
+					if (!processed(processed)) {
+						throw new InterruptedIOException("Transmission cancelled");
+					}
+				}
+				store(in, to, codec, out);
+				if (codec != null) {
+					codec.finish(out);
+					drain(out, to);
+				}
+				return to.position() - start;
+			} finally {
+				pool.release(in);
+				if (out != null) {
+					pool.release(out);
+				}
+			}
+		}
+
+		private static void closeCodecs(final Closeable... codecs) {
+			for (Closeable item : codecs) {
+				if (item != null) {
+					try {
+						item.close();
+					} catch (IOException e) {
+						// Data channel is broken already, so the only thing to do is to return buffers to the pool
+					}
+				}
+			}
+		}
+
+		private FileChannel openTarget() throws IOException {
+			if (append) {
+				final FileChannel	fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+				
+				return fc.position(fc.size());
+			}
+			else if (position > 0) {
+				// Restarted STOR continues from the restart position, tail after it will be rewritten
+				return FileChannel.open(file.toPath(), StandardOpenOption.WRITE).truncate(position).position(position);
+			}
+			else {
+				return FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+		}
+	  
+		private static void store(final ByteBuffer in, final WritableByteChannel to, final AsciiCodec codec, final ByteBuffer out) throws IOException {
+			in.flip();
+			if (codec == null) {
+				while (in.hasRemaining()) {
+					to.write(in);
+				}
+			}
+			else {
+				while (in.hasRemaining()) {
+					codec.translate(in, out);
+					drain(out, to);
+				}
+			}
+			in.clear();
+		}
+	  
+		private static int drain(final ByteBuffer buffer, final WritableByteChannel to) throws IOException {
+			final int	size = buffer.flip().remaining();
+			
+			while (buffer.hasRemaining()) {
+				to.write(buffer);
+			}
+			buffer.clear();
+			return size;
+		}
+	  
 		private void prepare() {
 			setName("Data copier ["+unique+"] for "+file.getName());
 			setDaemon(true);
@@ -1581,51 +2280,138 @@ class FTPSession implements Runnable, LoggerFacadeOwner {
 	}
 	
 	
+	private static enum MLSTFact {
+		TYPE("type"),
+		MODIFY("modify"),
+		PERM("perm"),
+		LANG("lang"),
+		SIZE("size");
+		
+		private final String	factName;
+		
+		private MLSTFact(final String factName) {
+			this.factName = factName;
+		}
+		
+		String getFactName() {
+			return factName;
+		}
+	}
+	
 	private static class MLSDResponse {
-		private static final String	FACT_SIZE = "size";
-		private static final String	FACT_MODIFY = "modify";
-		private static final String	FACT_TYPE = "type";
-		private static final String	FACT_PERM = "perm";
-		private static final String	FACT_LANG = "lang";
+		private static final MLSTFact[]	FACTS = MLSTFact.values();
 		
-		private final File		file;
+		private final ListingFormatter	formatter;
+		private final StringBuilder		sb = new StringBuilder();
+		private final Set<MLSTFact>		facts = EnumSet.allOf(MLSTFact.class);
 		
-		private MLSDResponse(final File file) {
-			this.file = file;
+		private MLSDResponse(final ListingFormatter formatter) {
+			this.formatter = formatter;
+		}
+
+		/**
+		 * Build fact line for the file. Returned sequence is valid until the next call only.
+		 * @param meta file to build fact line for
+		 * @param parentWritable true if the parent directory is writable (files can be deleted and renamed)
+		 * @return fact line built
+		 */
+		CharSequence getDescriptor(final FileMetadata meta, final boolean parentWritable) {
+			sb.setLength(0);
+			for (MLSTFact fact : FACTS) {
+				if (facts.contains(fact)) {
+					sb.append(fact.getFactName()).append('=');
+					switch (fact) {
+						case LANG	:
+							sb.append(Locale.getDefault().getLanguage());
+							break;
+						case MODIFY	:
+							formatter.appendTimestamp(sb, meta.getLastModified());
+							break;
+						case PERM	:
+							appendPermissions(meta, parentWritable);
+							break;
+						case SIZE	:
+							sb.append(meta.getSize());
+							break;
+						case TYPE	:
+							sb.append(meta.isDirectory() ? "dir" : "file");
+							break;
+						default:
+							throw new UnsupportedOperationException("Fact ["+fact+"] is not supported yet");
+					}
+					sb.append(';');
+				}
+			}
+			sb.append(' ');
+			for (int index = 0, length = meta.getName().length(); index < length; index++) {
+				final char	c = meta.getName().charAt(index);
+				
+				sb.append(c == File.separatorChar ? '/' : c);
+			}
+			return sb;
 		}
 
-		public String getDescriptor() {
-			final StringBuilder	sb = new StringBuilder();
+		boolean isAllFactsSelected() {
+			return facts.size() == FACTS.length;
+		}
+		
+		/**
+		 * Select facts to build (RFC-3659 'OPTS MLST'). Unknown facts are ignored
+		 * @param factList fact list in the 'fact;fact;...' format. Can be empty
+		 * @return facts selected in the 'fact;fact;...' format
+		 */
+		String selectFacts(final String factList) {
+			final StringBuilder	result = new StringBuilder();
 			
-			sb.append(FACT_TYPE).append('=').append(file.isDirectory() ? "dir" : "file").append(';');
-			sb.append(FACT_MODIFY).append('=').append(InternalUtils.milliseconds2Time(file.lastModified())).append(';');
-			sb.append(FACT_PERM).append('=').append(calcPermissions(file)).append(';');
-			sb.append(FACT_LANG).append('=').append(Locale.getDefault().getLanguage()).append(';');
-			sb.append(FACT_SIZE).append('=').append(file.length()).append(';');
-			sb.append(' ').append(file.getName().replace(File.separatorChar, '/'));
-			return sb.toString();
+			facts.clear();
+			for (String item : factList.split(";")) {
+				for (MLSTFact fact : FACTS) {
+					if (fact.getFactName().equalsIgnoreCase(item.trim())) {
+						facts.add(fact);
+					}
+				}
+			}
+			for (MLSTFact fact : FACTS) {
+				if (facts.contains(fact)) {
+					result.append(fact.getFactName()).append(';');
+				}
+			}
+			return result.toString();
 		}
 
-		private String calcPermissions(final File file) {
-			final StringBuilder	sb = new StringBuilder();
+		void reset() {
+			facts.addAll(EnumSet.allOf(MLSTFact.class));
+		}
+		
+		/**
+		 * @return FEAT line for MLST. Selected facts are marked with '*'
+		 */
+		String getFeatureString() {
+			final StringBuilder	result = new StringBuilder(Commands.MLST.name()).append(' ');
 			
-			if (file.isDirectory()) {
-				sb.append('e');
-				if (file.canWrite()) {
-					sb.append('c').append('f').append('l').append('m').append('p');
-					if (file.listFiles() == null) {
-						sb.append('d');
-					}
+			for (MLSTFact fact : FACTS) {
+				result.append(fact.getFactName()).append(facts.contains(fact) ? "*;" : ";");
+			}
+			return result.toString();
+		}
+		
+		private void appendPermissions(final FileMetadata meta, final boolean parentWritable) {
+			// RFC-3659, part 7.5.5. Write access is calculated from the mode bits read, so children are never enumerated
+			if (meta.isDirectory()) {
+				sb.append('e').append('l');
+				if (meta.isWritable()) {
+					sb.append('c').append('m').append('p');
 				}
 			}
 			else {
 				sb.append('r');
-				if (file.canWrite()) {
-					sb.append('a').append('d').append('w');
+				if (meta.isWritable()) {
+					sb.append('a').append('w');
 				}
 			}
-			return sb.toString();
+			if (parentWritable) {
+				sb.append('d').append('f');
+			}
 		}
-		
 	}
 }
@@ -0,0 +1,286 @@
+package chav1961.nanoftp.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the file attributes used by listing and fact-producing commands. All the attributes are read
+ * by the only {@link Files#readAttributes(Path, Class, LinkOption...)} call, so every directory entry costs one stat
+ * call instead of the separate ones for size, time, type, owner, group and permissions. Where the "unix" attribute
+ * view is available, owner and group are read as numeric ids and are resolved to names by the {@link PrincipalNameCache}.
+ * Names read by the "posix" view are passed through the same cache, so the numeric mode is honoured there too.
+ */
+final class FileMetadata {
+	private static final String		UNKNOWN_OWNER = "-";
+	private static final String		UNIX_ATTRIBUTES = "unix:uid,gid,mode,size,lastModifiedTime,isDirectory,isRegularFile";
+	private static final PosixFilePermission[]	PERMISSIONS = PosixFilePermission.values();
+	private static final boolean	UNIX_VIEW_SUPPORTED = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	private static final boolean	POSIX_VIEW_SUPPORTED = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	private static final int		UNKNOWN_ID = -1;
+	private static final String		GROUPS_PREFIX = "Groups:";
+	private static final int		PROCESS_UID;
+	private static final int		PROCESS_GID;
+	private static final int[]		PROCESS_GROUPS;
+
+	static {
+		int	uid = UNKNOWN_ID, gid = UNKNOWN_ID;
+
+		// Effective ids of the process are required to calculate write access from mode bits. /proc/self is owned by them on Linux,
+		// and any file created by the process is owned by them on other Unix systems
+		if (UNIX_VIEW_SUPPORTED) {
+			try {
+				final Map<String, Object>	attrs = Files.readAttributes(Paths.get("/proc/self"), "unix:uid,gid");
+
+				uid = (Integer)attrs.get("uid");
+				gid = (Integer)attrs.get("gid");
+			} catch (IOException | RuntimeException exc) {
+				try {
+					final Path					temp = Files.createTempFile("nanoftp", ".id");
+					final Map<String, Object>	attrs = Files.readAttributes(temp, "unix:uid,gid");
+
+					Files.delete(temp);
+					uid = (Integer)attrs.get("uid");
+					gid = (Integer)attrs.get("gid");
+				} catch (IOException | RuntimeException nested) {
+					uid = gid = UNKNOWN_ID;
+				}
+			}
+		}
+		PROCESS_UID = uid;
+		PROCESS_GID = gid;
+		PROCESS_GROUPS = uid == UNKNOWN_ID ? null : getSupplementaryGroups();
+	}
+
+	private final File				file;
+	private final String			name;
+	private final boolean			directory;
+	private final boolean			regularFile;
+	private final long				size;
+	private final long				lastModified;
+	private final String			owner;
+	private final String			group;
+	private final int				mode;
+	private final boolean			writable;
+
+	private FileMetadata(final File file, final boolean directory, final boolean regularFile, final long size, final long lastModified, final String owner, final String group, final int mode, final boolean writable) {
+		this.file = file;
+		this.name = file.getName();
+		this.directory = directory;
+		this.regularFile = regularFile;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.owner = owner;
+		this.group = group;
+		this.mode = mode;
+		this.writable = writable;
+	}
+
+	/**
+	 * Read file attributes.
+	 * @param file file to read attributes for. Can't be null
+	 * @param names owner and group names cache. Can't be null
+	 * @return attributes snapshot or null if file doesn't exist
+	 * @throws IOException on any I/O errors
+	 */
+	static FileMetadata of(final File file, final PrincipalNameCache names) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("File can't be null");
+		}
+		else if (names == null) {
+			throw new NullPointerException("Names cache can't be null");
+		}
+		else {
+			final Path	path = file.toPath();
+
+			try {
+				return of(file, path, names);
+			} catch (NoSuchFileException exc) {
+				try {
+					// Dangling symbolic link - describe the link itself
+					return of(file, path, names, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException nested) {
+					return null;
+				}
+			}
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	boolean isDirectory() {
+		return directory;
+	}
+
+	boolean isRegularFile() {
+		return regularFile;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	long getLastModified() {
+		return lastModified;
+	}
+
+	String getOwner() {
+		return owner;
+	}
+
+	String getGroup() {
+		return group;
+	}
+
+	/**
+	 * @return permissions as Unix mode bits (0755 and so on)
+	 */
+	int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return true if the server process can write the file (or create entries in the directory)
+	 */
+	boolean isWritable() {
+		return writable;
+	}
+
+	private static FileMetadata of(final File file, final Path path, final PrincipalNameCache names, final LinkOption... options) throws IOException {
+		if (UNIX_VIEW_SUPPORTED) {
+			final Map<String, Object>	attrs = Files.readAttributes(path, UNIX_ATTRIBUTES, options);
+			final int					uid = (Integer)attrs.get("uid"), gid = (Integer)attrs.get("gid"), mode = (Integer)attrs.get("mode") & 0777;
+
+			return new FileMetadata(file, (Boolean)attrs.get("isDirectory"), (Boolean)attrs.get("isRegularFile"), (Long)attrs.get("size")
+							, ((FileTime)attrs.get("lastModifiedTime")).toMillis()
+							, names.getUserName(uid, path, options), names.getGroupName(gid, path, options)
+							, mode, isWritable(file, uid, gid, mode));
+		}
+		else if (POSIX_VIEW_SUPPORTED) {
+			final PosixFileAttributes	attrs = Files.readAttributes(path, PosixFileAttributes.class, options);
+
+			return new FileMetadata(file, attrs.isDirectory(), attrs.isRegularFile(), attrs.size(), attrs.lastModifiedTime().toMillis()
+							, toName(names.getName(attrs.owner())), toName(names.getName(attrs.group())), toMode(attrs.permissions()), file.canWrite());
+		}
+		else {
+			final BasicFileAttributes	attrs = Files.readAttributes(path, BasicFileAttributes.class, options);
+			final String				owner = getOwner(path, options);
+			final int					mode = getMode(file);
+
+			return new FileMetadata(file, attrs.isDirectory(), attrs.isRegularFile(), attrs.size(), attrs.lastModifiedTime().toMillis()
+							, owner, owner, mode, (mode & 0222) != 0);
+		}
+	}
+
+	private static boolean isWritable(final File file, final int uid, final int gid, final int mode) {
+		if (PROCESS_UID == UNKNOWN_ID) {
+			return file.canWrite();
+		}
+		else if (PROCESS_UID == 0) {
+			return true;
+		}
+		else if (PROCESS_UID == uid) {
+			return (mode & 0200) != 0;
+		}
+		else if (PROCESS_GID == gid) {
+			return (mode & 0020) != 0;
+		}
+		else if (PROCESS_GROUPS == null) {
+			// Supplementary groups are unknown, so the file group can be one of them
+			return file.canWrite();
+		}
+		else if (Arrays.binarySearch(PROCESS_GROUPS, gid) >= 0) {
+			return (mode & 0020) != 0;
+		}
+		else {
+			return (mode & 0002) != 0;
+		}
+	}
+
+	private static int[] getSupplementaryGroups() {
+		// Supplementary groups are available on Linux only (as the "Groups:" line of the /proc/self/status)
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+				if (line.startsWith(GROUPS_PREFIX)) {
+					final String	content = line.substring(GROUPS_PREFIX.length()).trim();
+
+					if (content.isEmpty()) {
+						return new int[0];
+					}
+					else {
+						final String[]	ids = content.split("\\s+");
+						final int[]		result = new int[ids.length];
+
+						for (int index = 0; index < ids.length; index++) {
+							result[index] = Integer.parseInt(ids[index]);
+						}
+						Arrays.sort(result);
+						return result;
+					}
+				}
+			}
+			return null;
+		} catch (IOException | RuntimeException exc) {
+			return null;
+		}
+	}
+
+	private static int toMode(final Set<PosixFilePermission> permissions) {
+		int	result = 0;
+
+		// PosixFilePermission constants are declared from OWNER_READ to OTHERS_EXECUTE, i.e. from the highest mode bit to the lowest one
+		for (PosixFilePermission item : PERMISSIONS) {
+			result <<= 1;
+			if (permissions.contains(item)) {
+				result |= 1;
+			}
+		}
+		return result;
+	}
+
+	private static String toName(final String name) {
+		return name == null ? UNKNOWN_OWNER : name;
+	}
+
+	private static String getOwner(final Path path, final LinkOption... options) throws IOException {
+		try {
+			return Files.getOwner(path, options).getName();
+		} catch (UnsupportedOperationException exc) {
+			return UNKNOWN_OWNER;
+		}
+	}
+
+	private static int getMode(final File file) {
+		int	result = 0;
+
+		if (file.canRead()) {
+			result |= 0444;
+		}
+		if (file.canWrite()) {
+			result |= 0222;
+		}
+		if (file.canExecute()) {
+			result |= 0111;
+		}
+		return result;
+	}
+}
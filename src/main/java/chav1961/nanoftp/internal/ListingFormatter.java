@@ -0,0 +1,124 @@
+package chav1961.nanoftp.internal;
+
+import java.util.TimeZone;
+
+/**
+ * Formatter for the LIST lines and RFC-3659 timestamps. Content is built in the reusable char buffer, so the formatter
+ * produces no garbage per entry. Date decomposition of the last day seen is cached, because directory entries are
+ * frequently modified at the same day. Formatter is not thread-safe, each session owns its own instance. Returned
+ * sequences are valid until the next formatter call only.
+ */
+final class ListingFormatter {
+	private static final long		MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	private static final char[][]	PERMISSIONS = {
+										"---".toCharArray(), "--x".toCharArray(), "-w-".toCharArray(), "-wx".toCharArray(),
+										"r--".toCharArray(), "r-x".toCharArray(), "rw-".toCharArray(), "rwx".toCharArray()
+									};
+	private static final char[][]	MONTHS = {
+										"Jan".toCharArray(), "Feb".toCharArray(), "Mar".toCharArray(), "Apr".toCharArray(),
+										"May".toCharArray(), "Jun".toCharArray(), "Jul".toCharArray(), "Aug".toCharArray(),
+										"Sep".toCharArray(), "Oct".toCharArray(), "Nov".toCharArray(), "Dec".toCharArray()
+									};
+	private static final int		SIZE_WIDTH = 13;
+
+	private final StringBuilder	sb = new StringBuilder(128);
+	private final TimeZone		zone = TimeZone.getDefault();
+	private long				cachedDay = Long.MIN_VALUE;
+	private int					year, month, day;
+	private int					hour, minute, second;
+
+	/**
+	 * Build 'ls -l' line for the file.
+	 * @param meta file to build line for
+	 * @return line built (without line terminator)
+	 */
+	CharSequence formatList(final FileMetadata meta) {
+		final int	mode = meta.getMode();
+
+		decompose(meta.getLastModified());
+		sb.setLength(0);
+		sb.append(meta.isDirectory() ? 'd' : '-')
+		  .append(PERMISSIONS[(mode >> 6) & 7]).append(PERMISSIONS[(mode >> 3) & 7]).append(PERMISSIONS[mode & 7])
+		  .append(" 1 ").append(meta.getOwner()).append(' ').append(meta.getGroup()).append(' ');
+		appendPadded(meta.getSize(), SIZE_WIDTH, ' ');
+		sb.append(' ').append(MONTHS[month - 1]).append(' ');
+		appendPadded(day, 3, ' ');
+		sb.append(' ');
+		appendPadded(hour, 2, '0');
+		sb.append(':');
+		appendPadded(minute, 2, '0');
+		sb.append(' ').append(meta.getName());
+		return sb;
+	}
+
+	/**
+	 * Build RFC-3659 timestamp (YYYYMMDDHHMMSS) in the local time zone.
+	 * @param millis time to build timestamp for
+	 * @return timestamp built
+	 */
+	CharSequence formatTimestamp(final long millis) {
+		sb.setLength(0);
+		appendTimestamp(sb, millis);
+		return sb;
+	}
+
+	/**
+	 * Append RFC-3659 timestamp (YYYYMMDDHHMMSS) in the local time zone to the builder.
+	 * @param target builder to append timestamp to
+	 * @param millis time to build timestamp for
+	 */
+	void appendTimestamp(final StringBuilder target, final long millis) {
+		decompose(millis);
+		appendPadded(target, year, 4, '0');
+		appendPadded(target, month, 2, '0');
+		appendPadded(target, day, 2, '0');
+		appendPadded(target, hour, 2, '0');
+		appendPadded(target, minute, 2, '0');
+		appendPadded(target, second, 2, '0');
+	}
+
+	private void decompose(final long millis) {
+		final long	local = millis + zone.getOffset(millis);
+		final long	days = Math.floorDiv(local, MILLIS_PER_DAY);
+		final int	inDay = (int)Math.floorMod(local, MILLIS_PER_DAY) / 1000;
+
+		if (days != cachedDay) {
+			// Civil date from the day number (proleptic Gregorian calendar), see H.Hinnant's "chrono-compatible low-level date algorithms"
+			final long	z = days + 719468;
+			final long	era = Math.floorDiv(z, 146097);
+			final long	doe = z - era * 146097;
+			final long	yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+			final long	doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+			final long	mp = (5 * doy + 2) / 153;
+
+			day = (int)(doy - (153 * mp + 2) / 5 + 1);
+			month = (int)(mp < 10 ? mp + 3 : mp - 9);
+			year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+			cachedDay = days;
+		}
+		hour = inDay / 3600;
+		minute = inDay / 60 % 60;
+		second = inDay % 60;
+	}
+
+	private void appendPadded(final long value, final int width, final char filler) {
+		appendPadded(sb, value, width, filler);
+	}
+
+	private static void appendPadded(final StringBuilder target, final long value, final int width, final char filler) {
+		for (int index = digits(value); index < width; index++) {
+			target.append(filler);
+		}
+		target.append(value);
+	}
+
+	private static int digits(final long value) {
+		long	limit = 10;
+		int		count = value < 0 ? 2 : 1;
+
+		for (long temp = Math.abs(value); count < 19 && temp >= limit; limit *= 10) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -1,11 +1,14 @@
 package chav1961.nanoftp.internal;
 
 enum MessageType {
+	MSG_RESTART_MARKER(110, " MARK %1$s = %2$d\r\n"),
 	MSG_OPEN_CONN_FOR_LIST(125, " Opening ASCII mode data connection for file list.\r\n"),
 	MSG_OPEN_BIN_CONN_FOR_FILE(150, " Opening binary mode data connection for file %1$s\r\n"),
 	MSG_OPEN_ASCII_CONN_FOR_FILE(150, " Opening ASCII mode data connection for file %1$s\r\n"),
 	MSG_OPEN_BINARY_CONN_FOR_LIST(150, " Opening binary mode data connection for file list.\r\n"),
 	MSG_COMMAND_OK(200, " Command OK\r\n"),
+	MSG_MLST_OPTS(200, " MLST OPTS %1$s\r\n"),
+	MSG_MODE_Z_OPTS(200, " MODE Z LEVEL set to %1$d\r\n"),
 	MSG_COMMAND_IGNORED(202, " Command recognized but ignored.\r\n"),
 	MSG_SYSTEM_STATUS(211, " System status OK\r\n"),
 	MSG_EXTENSIONS_START(211, "-Extensions supported:\r\n"),
@@ -37,6 +40,7 @@ enum MessageType {
 	MSG_CURRENT_DIR(257, " \"%1$s\"\r\n"),	  
 	MSG_USER_NAME_OK(331, " User name okay, need password\r\n"),
 	MSG_AWAITING_CONTINUATION(350, " Requested file action pending further information.\r\n"),
+	MSG_RESTART_ACCEPTED(350, " Restarting at %1$d. Send STORE or RETRIEVE to initiate transfer\r\n"),
 	MSG_STILL_RUNNING(421, " Service is still running and can't process new request.\r\n"),
 	MSG_PORT_CONNECTION_FAILURE(421, " 'PORT' command connection failed to connect %1$s:%2$d.\r\n"),
 	MSG_PASV_CONNECTION_FAILURE(421, " 'PASV' command connection failure.\r\n"),
@@ -55,6 +59,7 @@ enum MessageType {
 	MSG_USER_NOT_LOGGED(530," Command in wrong context (possibly not logged in)\r\n"),
 	MSG_USER_NOT_ENTERED(530," User name is not entered yet\r\n"),
 	MSG_WRONG_CREDENTIALS(530," Wrong credentials for user typed\r\n"),
+	MSG_INVALID_RESTART_POSITION(554, " Requested action not taken: invalid REST parameter %1$d\r\n"),
 	MSG_FAILURE_FILE_UNAVAILABLE(550, " Requested action not taken. File %1$s unavailable.\r\n"),
 	MSG_FAILURE_FILE_NOT_EXISTS(550, " Entity %1$s does not exist, not a file or is not available for current user\r\n"),
 	MSG_FAILURE_DIRECTORY_NOT_EXISTS(550, " Entity %1$s does not exist, not a directory or is not available for current user\r\n"),
@@ -62,12 +67,14 @@ enum MessageType {
 	MSG_FAILURE_DIRECTORY_NOT_CREATED(550, " Failed to create new directory %1$s\r\n");
 	;
 	  
-	private final int		code;
-	private final String	message;
+	private final int			code;
+	private final String		message;
+	private final ReplyTemplate	template;
 	  
 	private MessageType(final int code, final String message) {
 		this.code = code;
 		this.message = message;
+		this.template = new ReplyTemplate(code, message);
 	}
 	  
 	public int getCode() {	
@@ -77,4 +84,8 @@ enum MessageType {
 	public String getMessage() {
 		return message;
 	}
+
+	ReplyTemplate getTemplate() {
+		return template;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package chav1961.nanoftp.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server-wide cache of the user and group names by their numeric ids. On the hosts with NSS/LDAP every name resolution
+ * is a lookup, so resolved names are kept for the time to live. Cache size is limited, least recently used names are
+ * removed first. In the numeric mode names are not resolved at all, decimal ids are used instead.
+ */
+class PrincipalNameCache {
+	private final int					maxSize;
+	private final long					timeToLive;
+	private final boolean				numericOnly;
+	private final Map<Integer, Entry>	users;
+	private final Map<Integer, Entry>	groups;
+
+	PrincipalNameCache(final int maxSize, final long timeToLive, final boolean numericOnly) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max cache size ["+maxSize+"] must be positive");
+		}
+		else if (timeToLive <= 0) {
+			throw new IllegalArgumentException("Time to live ["+timeToLive+"] must be positive");
+		}
+		else {
+			this.maxSize = maxSize;
+			this.timeToLive = timeToLive;
+			this.numericOnly = numericOnly;
+			this.users = newMap();
+			this.groups = newMap();
+		}
+	}
+
+	/**
+	 * Get user name by id.
+	 * @param uid user id
+	 * @param path file owned by the user. Used to resolve name when missing in the cache
+	 * @param options link options to resolve name
+	 * @return user name
+	 * @throws IOException on any I/O errors
+	 */
+	String getUserName(final int uid, final Path path, final LinkOption... options) throws IOException {
+		return getName(users, uid, path, true, options);
+	}
+
+	/**
+	 * Get group name by id.
+	 * @param gid group id
+	 * @param path file owned by the group. Used to resolve name when missing in the cache
+	 * @param options link options to resolve name
+	 * @return group name
+	 * @throws IOException on any I/O errors
+	 */
+	String getGroupName(final int gid, final Path path, final LinkOption... options) throws IOException {
+		return getName(groups, gid, path, false, options);
+	}
+
+	/**
+	 * Get name of the principal already resolved by the file attribute view. Such views (for example, "posix" one) don't
+	 * expose numeric ids, so the name can be shown in the numeric mode only when the principal has no name except the id.
+	 * @param principal principal to get name for. Can't be null
+	 * @return principal name or null if it can't be shown in the numeric mode
+	 */
+	String getName(final Principal principal) {
+		if (principal == null) {
+			throw new NullPointerException("Principal can't be null");
+		}
+		else {
+			final String	name = principal.getName();
+
+			return !numericOnly || isNumeric(name) ? name : null;
+		}
+	}
+
+	private String getName(final Map<Integer, Entry> cache, final int id, final Path path, final boolean user, final LinkOption... options) throws IOException {
+		final long	now = System.currentTimeMillis();
+
+		synchronized (cache) {
+			final Entry	entry = cache.get(id);
+
+			if (entry != null && entry.expired > now) {
+				return entry.name;
+			}
+		}
+		final String	name;
+
+		if (numericOnly) {
+			name = Integer.toString(id);
+		}
+		else {
+			final PosixFileAttributes	attrs = Files.readAttributes(path, PosixFileAttributes.class, options);
+
+			name = user ? attrs.owner().getName() : attrs.group().getName();
+		}
+		synchronized (cache) {
+			cache.put(id, new Entry(name, now + timeToLive));
+		}
+		return name;
+	}
+
+	private static boolean isNumeric(final String name) {
+		if (name.isEmpty()) {
+			return false;
+		}
+		else {
+			for (int index = 0; index < name.length(); index++) {
+				if (name.charAt(index) < '0' || name.charAt(index) > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private Map<Integer, Entry> newMap() {
+		return new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Integer, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	private static class Entry {
+		private final String	name;
+		private final long		expired;
+
+		private Entry(final String name, final long expired) {
+			this.name = name;
+			this.expired = expired;
+		}
+	}
+}
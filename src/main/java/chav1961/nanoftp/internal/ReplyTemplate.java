@@ -0,0 +1,132 @@
+package chav1961.nanoftp.internal;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled reply template. Template is a reply code followed by the message with the positional format specifiers
+ * (%1$s, %2$d, %3$b, %4$.3f). Literal parts of the template are encoded once per charset and are shared by all
+ * the sessions, parameters are appended by the {@link ReplyWriter} directly into its output buffer.
+ */
+final class ReplyTemplate {
+	private final String[]				literals;
+	private final int[]					argIndices;
+	private final char[]				conversions;
+	private final int[]					precisions;
+	private final Map<Charset, byte[][]>	encoded = new ConcurrentHashMap<>();
+
+	ReplyTemplate(final int code, final String message) {
+		if (message == null) {
+			throw new NullPointerException("Message can't be null");
+		}
+		else {
+			final List<String>	literals = new ArrayList<>();
+			final StringBuilder	sb = new StringBuilder().append(code);
+			final int[]			argIndices = new int[message.length()];
+			final char[]		conversions = new char[message.length()];
+			final int[]			precisions = new int[message.length()];
+			int					count = 0, index = 0;
+
+			while (index < message.length()) {
+				final char	c = message.charAt(index++);
+
+				if (c != '%') {
+					sb.append(c);
+				}
+				else {
+					// Only %<n>$[.<precision>]<conversion> specifiers are supported
+					final int	start = index - 1;
+					int			argIndex = 0, precision = -1;
+
+					while (index < message.length() && Character.isDigit(message.charAt(index))) {
+						argIndex = argIndex * 10 + message.charAt(index++) - '0';
+					}
+					if (argIndex == 0 || index >= message.length() || message.charAt(index++) != '$') {
+						throw new IllegalArgumentException("Unsupported format specifier at position ["+start+"] in ["+message+"]");
+					}
+					if (index < message.length() && message.charAt(index) == '.') {
+						precision = 0;
+						index++;
+						while (index < message.length() && Character.isDigit(message.charAt(index))) {
+							precision = precision * 10 + message.charAt(index++) - '0';
+						}
+					}
+					if (index >= message.length() || "sdbf".indexOf(message.charAt(index)) < 0 || (message.charAt(index) == 'f') != (precision >= 0)) {
+						throw new IllegalArgumentException("Unsupported format specifier at position ["+start+"] in ["+message+"]");
+					}
+					literals.add(sb.toString());
+					sb.setLength(0);
+					argIndices[count] = argIndex - 1;
+					conversions[count] = message.charAt(index++);
+					precisions[count] = precision;
+					count++;
+				}
+			}
+			literals.add(sb.toString());
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.argIndices = new int[count];
+			this.conversions = new char[count];
+			this.precisions = new int[count];
+			System.arraycopy(argIndices, 0, this.argIndices, 0, count);
+			System.arraycopy(conversions, 0, this.conversions, 0, count);
+			System.arraycopy(precisions, 0, this.precisions, 0, count);
+		}
+	}
+
+	/**
+	 * @return number of the parameter specifiers in the template
+	 */
+	int getArgCount() {
+		return argIndices.length;
+	}
+
+	/**
+	 * @param specifier specifier number
+	 * @return parameter index (zero-based) referenced by the specifier
+	 */
+	int getArgIndex(final int specifier) {
+		return argIndices[specifier];
+	}
+
+	/**
+	 * @param specifier specifier number
+	 * @return conversion char of the specifier ('s', 'd', 'b' or 'f')
+	 */
+	char getConversion(final int specifier) {
+		return conversions[specifier];
+	}
+
+	/**
+	 * @param specifier specifier number
+	 * @return precision of the specifier or -1 if missing
+	 */
+	int getPrecision(final int specifier) {
+		return precisions[specifier];
+	}
+
+	/**
+	 * Get literal parts of the template encoded. Literal with index N precedes specifier with index N, the last literal
+	 * follows the last specifier.
+	 * @param charset charset to encode literals. Can't be null
+	 * @return literals encoded
+	 */
+	byte[][] getLiterals(final Charset charset) {
+		final byte[][]	result = encoded.get(charset);
+
+		if (result != null) {
+			return result;
+		}
+		else {
+			final byte[][]	content = new byte[literals.length][];
+
+			for (int index = 0; index < content.length; index++) {
+				content[index] = literals[index].getBytes(charset);
+			}
+			encoded.putIfAbsent(charset, content);
+			return content;
+		}
+	}
+}
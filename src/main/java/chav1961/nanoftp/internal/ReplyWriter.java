@@ -0,0 +1,242 @@
+package chav1961.nanoftp.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writer for the control connection replies. Replies are built in the reusable byte buffer: pre-encoded literal parts
+ * of the {@link ReplyTemplate} are copied as is, numbers are appended digit by digit and strings are encoded in place.
+ * Buffer content is written to the stream on {@link #flush()} or on buffer overflow only. Writer is not thread-safe,
+ * session serializes all the replies by its own lock.
+ */
+class ReplyWriter {
+	private static final String	ASCII_PROBE = "\r\n 09AZaz~";
+	private static final int	BUFFER_SIZE = 4096;
+	private static final byte[]	TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[]	FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream		os;
+	private final Charset			charset;
+	private final CharsetEncoder	encoder;
+	private final boolean			asciiCompatible;
+	private final byte[]			buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer		wrapper = ByteBuffer.wrap(buffer);
+	private final byte[]			digits = new byte[20];
+	private int						position = 0;
+
+	ReplyWriter(final OutputStream os, final Charset charset) {
+		if (os == null) {
+			throw new NullPointerException("Output stream can't be null");
+		}
+		else if (charset == null) {
+			throw new NullPointerException("Charset can't be null");
+		}
+		else {
+			this.os = os;
+			this.charset = charset;
+			this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.asciiCompatible = Arrays.equals(ASCII_PROBE.getBytes(charset), ASCII_PROBE.getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Write reply built from the message template.
+	 * @param msg message to write. Can't be null
+	 * @param parameters message parameters. Missing parameters are written as empty strings
+	 * @throws IOException on any I/O errors
+	 */
+	void writeReply(final MessageType msg, final Object... parameters) throws IOException {
+		final ReplyTemplate	template = msg.getTemplate();
+		final byte[][]		literals = template.getLiterals(charset);
+
+		for (int index = 0, maxIndex = template.getArgCount(); index < maxIndex; index++) {
+			final int	argIndex = template.getArgIndex(index);
+
+			write(literals[index]);
+			if (parameters != null && argIndex < parameters.length) {
+				writeParameter(parameters[argIndex], template.getConversion(index), template.getPrecision(index));
+			}
+		}
+		write(literals[literals.length - 1]);
+	}
+
+	/**
+	 * Build reply text exactly as {@link #writeReply(MessageType, Object...)} writes it. Used for the debug trace only.
+	 * @param msg message to build. Can't be null
+	 * @param parameters message parameters. Missing parameters are written as empty strings
+	 * @return reply text
+	 */
+	static String formatReply(final MessageType msg, final Object... parameters) {
+		final ByteArrayOutputStream	baos = new ByteArrayOutputStream();
+		final ReplyWriter			writer = new ReplyWriter(baos, StandardCharsets.UTF_8);
+
+		try {
+			writer.writeReply(msg, parameters);
+			writer.flush();
+		} catch (IOException exc) {
+			// Byte array stream never throws
+			throw new IllegalStateException(exc);
+		}
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	void write(final byte[] content) throws IOException {
+		if (content.length > buffer.length - position) {
+			flushBuffer();
+		}
+		if (content.length > buffer.length) {
+			os.write(content);
+		}
+		else {
+			System.arraycopy(content, 0, buffer, position, content.length);
+			position += content.length;
+		}
+	}
+
+	void write(final char c) throws IOException {
+		if (asciiCompatible && c < 0x80) {
+			if (position == buffer.length) {
+				flushBuffer();
+			}
+			buffer[position++] = (byte)c;
+		}
+		else {
+			encode(CharBuffer.wrap(new char[] {c}));
+		}
+	}
+
+	void write(final CharSequence content) throws IOException {
+		for (int index = 0, maxIndex = content.length(); index < maxIndex; index++) {
+			final char	c = content.charAt(index);
+
+			if (asciiCompatible && c < 0x80) {
+				if (position == buffer.length) {
+					flushBuffer();
+				}
+				buffer[position++] = (byte)c;
+			}
+			else {
+				encode(CharBuffer.wrap(content, index, maxIndex));
+				return;
+			}
+		}
+	}
+
+	void write(long value) throws IOException {
+		int		count = 0;
+
+		if (value == Long.MIN_VALUE) {
+			write(Long.toString(value));
+		}
+		else {
+			if (value < 0) {
+				write('-');
+				value = -value;
+			}
+			do {
+				digits[count++] = (byte)('0' + value % 10);
+				value /= 10;
+			} while (value != 0);
+			if (position + count > buffer.length) {
+				flushBuffer();
+			}
+			while (count > 0) {
+				buffer[position++] = digits[--count];
+			}
+		}
+	}
+
+	void flush() throws IOException {
+		flushBuffer();
+		os.flush();
+	}
+
+	private void writeParameter(final Object value, final char conversion, final int precision) throws IOException {
+		switch (conversion) {
+			case 'd'	:
+				if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+					write(((Number)value).longValue());
+				}
+				else {
+					write(String.valueOf(value));
+				}
+				break;
+			case 'b'	:
+				write(value == null || Boolean.FALSE.equals(value) ? FALSE : TRUE);
+				break;
+			case 'f'	:
+				writeFixed(value, precision);
+				break;
+			default :
+				if (value instanceof CharSequence) {
+					write((CharSequence)value);
+				}
+				else if (value instanceof Long || value instanceof Integer) {
+					write(((Number)value).longValue());
+				}
+				else {
+					write(String.valueOf(value));
+				}
+				break;
+		}
+	}
+
+	private void writeFixed(final Object value, final int precision) throws IOException {
+		final double	number = value instanceof Number ? ((Number)value).doubleValue() : Double.NaN;
+		long			scale = 1;
+
+		for (int index = 0; index < precision; index++) {
+			scale *= 10;
+		}
+		if (Double.isNaN(number) || Double.isInfinite(number) || precision > 9 || Math.abs(number) * scale >= Long.MAX_VALUE / 10) {
+			write(String.valueOf(value));
+		}
+		else {
+			final long	scaled = Math.round(Math.abs(number) * scale);
+			final long	fraction = scaled % scale;
+
+			if (number < 0 && scaled != 0) {
+				write('-');
+			}
+			write(scaled / scale);
+			if (precision > 0) {
+				write('.');
+				for (long limit = scale / 10; limit > 1 && fraction < limit; limit /= 10) {
+					write('0');
+				}
+				write(fraction);
+			}
+		}
+	}
+
+	private void encode(final CharBuffer content) throws IOException {
+		encoder.reset();
+		wrapper.limit(buffer.length).position(position);
+		while (encoder.encode(content, wrapper, true).isOverflow()) {
+			position = wrapper.position();
+			flushBuffer();
+			wrapper.clear();
+		}
+		while (encoder.flush(wrapper).isOverflow()) {
+			position = wrapper.position();
+			flushBuffer();
+			wrapper.clear();
+		}
+		position = wrapper.position();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			os.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package chav1961.nanoftp.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
+
+/**
+ * Selector-based control connection engine. All the control connections are served by the only selector thread,
+ * complete command lines are dispatched to the worker pool. Idle session costs one buffer and one selection key only.
+ * Replies of the pipelined commands are flushed once, when all the command lines received are processed. Commands which
+ * wait for the client's data connection or write to it are run on the separate executor, so clients which never connect
+ * or never read can't stall the worker pool shared by all the sessions. Replies which are not accepted by the client
+ * for the timeout close the session.
+ */
+class SelectorEngine implements Runnable {
+	private static final int	MAX_PENDING_LINES = 64;
+	private static final long	REPLY_WRITE_TIMEOUT = 30_000;
+	private static final EnumSet<Commands>	BLOCKING_COMMANDS = EnumSet.of(Commands.PORT, Commands.EPRT, Commands.PASV, Commands.EPSV, Commands.LIST, Commands.NLST, Commands.MLSD);
+
+	private final FTPServer				server;
+	private final ServerSocketChannel	ssc;
+	private final ExecutorService		workers;
+	private final ExecutorService		blocking;
+	private final boolean				needDebug;
+	private final Selector				selector;
+
+	SelectorEngine(final FTPServer server, final ServerSocketChannel ssc, final ExecutorService workers, final ExecutorService blocking, final boolean needDebug) throws IOException {
+		this.server = server;
+		this.ssc = ssc;
+		this.workers = workers;
+		this.blocking = blocking;
+		this.needDebug = needDebug;
+		this.selector = Selector.open();
+	}
+
+	@Override
+	public void run() {
+		try {
+			ssc.configureBlocking(false);
+			ssc.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (ssc.isOpen()) {
+				selector.select();
+
+				final Iterator<SelectionKey>	it = selector.selectedKeys().iterator();
+
+				while (it.hasNext()) {
+					final SelectionKey	key = it.next();
+
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					else if (key.isAcceptable()) {
+						accept();
+					}
+					else if (key.isReadable()) {
+						((ControlConnection)key.attachment()).read();
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException exc) {
+			if (needDebug) {
+				server.getLogger().message(Severity.debug, "Selector engine terminated: "+exc.getLocalizedMessage());
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof ControlConnection) {
+					((ControlConnection)key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		final SocketChannel	channel = ssc.accept();
+
+		if (channel != null) {
+			if (server.isStarted() && !server.isSuspended()) {
+				final FTPSession		session = server.newSession(channel.socket());
+				final ControlConnection	conn = new ControlConnection(channel, session);
+
+				channel.configureBlocking(false);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+				conn.dispatch(null);
+			}
+			else {
+				channel.close();
+			}
+		}
+	}
+
+	private class ControlConnection implements Runnable {
+		private final SocketChannel	channel;
+		private final FTPSession	session;
+		private final ControlLineReader		reader;
+		private final Deque<PendingCommand>	pending = new ArrayDeque<>();
+		private SelectionKey		key;
+		private boolean				opened = false;
+		private boolean				running = false;
+		private boolean				offloaded = false;
+		private volatile boolean	closed = false;
+
+		private ControlConnection(final SocketChannel channel, final FTPSession session) {
+			this.channel = channel;
+			this.session = session;
+			this.reader = session.newLineReader();
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!opened) {
+					session.open(new ChannelOutputStream(channel, this));
+					opened = true;
+				}
+				for (;;) {
+					final PendingCommand	line;
+
+					synchronized (this) {
+						line = pending.peek();
+						if (line != null && BLOCKING_COMMANDS.contains(line.command) != offloaded) {
+							// Processing continues on the other executor, and only one of them runs the session at a time, so command order is kept
+							offloaded = !offloaded;
+							(offloaded ? blocking : workers).execute(this);
+							return;
+						}
+						pending.poll();
+					}
+					if (line == null) {
+						// Flush outside the lock, and re-check the queue after, because new lines can be dispatched while flushing
+						session.flushAnswers();
+						synchronized (this) {
+							if (pending.isEmpty()) {
+								running = false;
+								if (!closed && key.isValid() && key.interestOps() == 0) {
+									key.interestOps(SelectionKey.OP_READ);
+									selector.wakeup();
+								}
+								return;
+							}
+						}
+					}
+					else if (!session.processCommand(line.command, line.args, line.line)) {
+						session.flushAnswers();
+						close();
+						return;
+					}
+				}
+			} catch (Exception exc) {
+				synchronized (this) {
+					running = false;
+				}
+				if (needDebug) {
+					exc.printStackTrace();
+				}
+				close();
+			}
+		}
+
+		private void read() {
+			try {
+				final int	count = reader.read(channel);
+
+				if (count < 0) {
+					close();
+				}
+				else if (count > 0) {
+					while (reader.nextLine()) {
+						final Commands	cmd = reader.getCommand();
+
+						dispatch(new PendingCommand(cmd, reader.getArguments(), cmd == null && needDebug ? reader.getLine() : null));
+					}
+					if (reader.isOverflow()) {
+						if (needDebug) {
+							server.getLogger().message(Severity.debug, "Control line longer than "+reader.getMaxLineLength()+" bytes from ["+channel.socket().getRemoteSocketAddress()+"], connection closed");
+						}
+						close();
+					}
+				}
+			} catch (IOException exc) {
+				close();
+			}
+		}
+
+		private synchronized void dispatch(final PendingCommand line) {
+			if (line != null) {
+				pending.add(line);
+				if (pending.size() >= MAX_PENDING_LINES && key.isValid()) {
+					key.interestOps(0);
+				}
+			}
+			if (!running && !closed) {
+				running = true;
+				offloaded = false;
+				workers.execute(this);
+			}
+		}
+
+		private void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				else {
+					closed = true;
+				}
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			// Socket of the registered channel is released by the next selection only
+			selector.wakeup();
+			session.close();
+		}
+	}
+
+	private static class PendingCommand {
+		private final Commands	command;
+		private final String	args;
+		private final String	line;
+
+		private PendingCommand(final Commands command, final String args, final String line) {
+			this.command = command;
+			this.args = args;
+			this.line = line;
+		}
+	}
+
+	private static class ChannelOutputStream extends OutputStream {
+		private final SocketChannel		channel;
+		private final ControlConnection	owner;
+
+		private ChannelOutputStream(final SocketChannel channel, final ControlConnection owner) {
+			this.channel = channel;
+			this.owner = owner;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			final ByteBuffer	bb = ByteBuffer.wrap(b, off, len);
+
+			while (bb.hasRemaining()) {
+				if (channel.write(bb) == 0) {
+					awaitWritable();
+				}
+			}
+		}
+
+		private void awaitWritable() throws IOException {
+			// Client doesn't read replies. Writer waits on the private selector instead of spinning, channel can be registered with many selectors
+			try(final Selector	writable = Selector.open()) {
+				final long	deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLY_WRITE_TIMEOUT);
+				
+				channel.register(writable, SelectionKey.OP_WRITE);
+				while (writable.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))) == 0) {
+					if (Thread.interrupted()) {
+						throw new InterruptedIOException("Reply write interrupted");
+					}
+					else if (System.nanoTime() - deadline >= 0) {
+						owner.close();
+						throw new SocketTimeoutException("Reply was not accepted by the client for "+REPLY_WRITE_TIMEOUT+" msec, connection closed");
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package chav1961.nanoftp.jmx;
+
+import chav1961.nanoftp.utils.ContentCache;
+
+public class ContentCacheManager implements ContentCacheManagerMBean {
+	private final ContentCache	cache;
+	
+	public ContentCacheManager(final ContentCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("Content cache can't be null");
+		}
+		else {
+			this.cache = cache;
+		}
+	}
+
+	@Override
+	public long getCapacity() {
+		return cache.getCapacity();
+	}
+
+	@Override
+	public long getSize() {
+		return cache.getSize();
+	}
+
+	@Override
+	public int getEntryCount() {
+		return cache.getEntryCount();
+	}
+
+	@Override
+	public long getHits() {
+		return cache.getHits();
+	}
+
+	@Override
+	public long getMisses() {
+		return cache.getMisses();
+	}
+
+	@Override
+	public long getEvictions() {
+		return cache.getEvictions();
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+	}
+}
@@ -0,0 +1,11 @@
+package chav1961.nanoftp.jmx;
+
+public interface ContentCacheManagerMBean {
+	long getCapacity();
+	long getSize();
+	int getEntryCount();
+	long getHits();
+	long getMisses();
+	long getEvictions();
+	void clear();
+}
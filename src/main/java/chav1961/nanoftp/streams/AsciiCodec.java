@@ -0,0 +1,166 @@
+package chav1961.nanoftp.streams;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level TYPE A translator (RFC959 part 3.1.1.1). Converts local LF line ends to the network CRLF ones and back.
+ * Content is scanned eight bytes at a time, spans without line ends are copied in bulk. CR split across buffer
+ * boundaries is kept in the codec state, so call {@link #finish(ByteBuffer)} after the last {@link #translate(ByteBuffer, ByteBuffer)}.
+ */
+public class AsciiCodec {
+	private static final byte	CR = '\r';
+	private static final byte	LF = '\n';
+	private static final long	ONES = 0x0101010101010101L;
+	private static final long	HIGHS = 0x8080808080808080L;
+
+	private final boolean	toNetwork;
+	private byte			last = 0;
+	private boolean			pendingLF = false;
+	private boolean			pendingCR = false;
+
+	/**
+	 * @param toNetwork true to convert LF to CRLF, false to convert CRLF to LF
+	 */
+	public AsciiCodec(final boolean toNetwork) {
+		this.toNetwork = toNetwork;
+	}
+
+	/**
+	 * Translate as much content of the source buffer as the target buffer can hold.
+	 * @param src source buffer. Position will be moved to the first unprocessed byte
+	 * @param dst target buffer. Position will be moved after the last stored byte
+	 */
+	public void translate(final ByteBuffer src, final ByteBuffer dst) {
+		if (toNetwork) {
+			encode(src, dst);
+		}
+		else {
+			decode(src, dst);
+		}
+	}
+
+	/**
+	 * Store content kept in the codec state. Target buffer must have at least one free byte.
+	 * @param dst target buffer.
+	 */
+	public void finish(final ByteBuffer dst) {
+		if (pendingLF) {
+			dst.put(LF);
+			pendingLF = false;
+		}
+		if (pendingCR) {
+			dst.put(CR);
+			pendingCR = false;
+		}
+	}
+
+	private void encode(final ByteBuffer src, final ByteBuffer dst) {
+		if (pendingLF) {
+			if (!dst.hasRemaining()) {
+				return;
+			}
+			dst.put(LF);
+			pendingLF = false;
+		}
+		while (src.hasRemaining() && dst.hasRemaining()) {
+			final int	start = src.position();
+			final int	limit = start + Math.min(src.remaining(), dst.remaining());
+			final int	found = indexOf(src, start, limit, LF);
+
+			if (found < 0) {
+				copy(src, dst, limit - start);
+				last = src.get(limit - 1);
+			}
+			else {
+				if (found > start) {
+					copy(src, dst, found - start);
+					last = src.get(found - 1);
+				}
+				src.get();
+				if (last == CR) {
+					dst.put(LF);
+				}
+				else {
+					dst.put(CR);
+					if (dst.hasRemaining()) {
+						dst.put(LF);
+					}
+					else {
+						pendingLF = true;
+					}
+				}
+				last = LF;
+			}
+		}
+	}
+
+	private void decode(final ByteBuffer src, final ByteBuffer dst) {
+		if (pendingCR) {
+			if (!src.hasRemaining() || !dst.hasRemaining()) {
+				return;
+			}
+			else if (src.get(src.position()) == LF) {
+				src.get();
+				dst.put(LF);
+			}
+			else {
+				dst.put(CR);
+			}
+			pendingCR = false;
+		}
+		while (src.hasRemaining() && dst.hasRemaining()) {
+			final int	start = src.position();
+			final int	limit = start + Math.min(src.remaining(), dst.remaining());
+			final int	found = indexOf(src, start, limit, CR);
+
+			if (found < 0) {
+				copy(src, dst, limit - start);
+			}
+			else {
+				if (found > start) {
+					copy(src, dst, found - start);
+				}
+				src.get();
+				if (!src.hasRemaining()) {
+					pendingCR = true;
+				}
+				else if (src.get(src.position()) == LF) {
+					src.get();
+					dst.put(LF);
+				}
+				else {
+					dst.put(CR);
+				}
+			}
+		}
+	}
+
+	private static int indexOf(final ByteBuffer buffer, final int from, final int to, final byte value) {
+		final long	pattern = ONES * (value & 0xFF);
+		int			index = from;
+
+		// SWAR test: some byte of the word equals to value when ((x - 0x01..01) & ~x & 0x80..80) != 0 for x = word ^ pattern
+		while (index + Long.BYTES <= to) {
+			final long	x = buffer.getLong(index) ^ pattern;
+
+			if (((x - ONES) & ~x & HIGHS) != 0) {
+				break;
+			}
+			index += Long.BYTES;
+		}
+		for (; index < to; index++) {
+			if (buffer.get(index) == value) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static void copy(final ByteBuffer src, final ByteBuffer dst, final int length) {
+		final int	limit = src.limit();
+
+		src.limit(src.position() + length);
+		dst.put(src);
+		src.limit(limit);
+	}
+}
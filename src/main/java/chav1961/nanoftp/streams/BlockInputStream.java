@@ -4,16 +4,23 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * RFC959 part 3.4.2. Block mode decoder. Block payloads are copied from the nested stream directly to the caller's
+ * array, end of record (EOR descriptor) is returned as the local line separator, and the block with EOF descriptor
+ * ends the stream (nested stream is not read after it). Restart marker block is reported by the
+ * {@link RestartMarkerDetectedException}, reading can be continued after it.
+ */
 public class BlockInputStream extends InputStream {
-	private static final int	INITIAL_STATE = 0; 
-	private static final int	STATE_DATA = 1; 
-	private static final int	STATE_BUFFER = 2; 
+	private static final byte[]	LS = System.lineSeparator().getBytes();
+
 	private final InputStream	nested;
-	private final int[]			buffer = new int[3];
-	private int		state = INITIAL_STATE;
-	private int		count = 0;
-	private int		bufferCount = 0;
-	
+	private final byte[]		header = new byte[BlockOutputStream.HEADER_SIZE];
+	private final byte[]		single = new byte[1];
+	private int					descriptor = 0;
+	private int					remaining = 0;
+	private int					separator = LS.length;
+	private boolean				eof = false;
+
 	public BlockInputStream(final InputStream nested) {
 		if (nested == null) {
 			throw new NullPointerException("Nested input stream can't be null");
@@ -25,63 +32,121 @@ public class BlockInputStream extends InputStream {
 
 	@Override
 	public int read() throws IOException {
-		switch (state) {
-			case INITIAL_STATE	:
-				final int	value = mandatoryRead("descriptor code truncated");
-				
-				if ((value & 0b10000000) != 0) {
-					buffer[bufferCount++] = '\r';
-					buffer[bufferCount++] = '\n';
-				}
-				if ((value & 0b01000000) != 0) {
-					buffer[bufferCount++] = -1;
+		int	count;
+
+		while ((count = read(single, 0, 1)) == 0) {
+		}
+		return count < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
+		}
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
+		}
+		else if (len == 0) {
+			return 0;
+		}
+		else {
+			int	total = 0;
+
+			while (total < len) {
+				if (separator < LS.length) {
+					final int	size = Math.min(len - total, LS.length - separator);
+
+					System.arraycopy(LS, separator, b, off + total, size);
+					separator += size;
+					total += size;
 				}
-				if ((value & 0b00010000) != 0) {
-					final int 		len = (mandatoryRead("header length field truncated") << 8) | mandatoryRead("header length field truncated");
-					final byte[]	marker = new byte[len];
-					
-					for(int index = 0; index < len; index++) {
-						marker[index] = (byte)mandatoryRead("header restart marker truncated");
+				else if (remaining > 0) {
+					final int	count = nested.read(b, off + total, Math.min(len - total, remaining));
+
+					if (count < 0) {
+						throw new EOFException("Unexpected EOF (data block truncated)");
+					}
+					else {
+						remaining -= count;
+						total += count;
+						if (remaining == 0) {
+							endOfBlock();
+						}
+						// Don't block on the nested stream when some content is already available
+						if (remaining > 0 && nested.available() <= 0) {
+							break;
+						}
 					}
-					throw new RestartMarkerDetectedException(marker);
 				}
-				count = (mandatoryRead("header length field truncated") << 8) | mandatoryRead("header length field truncated");
-				state = STATE_DATA;
-				return read();
-			case STATE_DATA		: 
-				if (count > 0) {
-					count--;
-					return mandatoryRead("data block truncated");
+				else if (eof) {
+					return total == 0 ? -1 : total;
 				}
-				else if (bufferCount > 0) {
-					state = STATE_BUFFER;
-					return read();
+				else if (total > 0) {
+					// Next header can be a restart marker, so it is never read after some content was stored
+					break;
 				}
 				else {
-					state = INITIAL_STATE;
-					return read();
+					readHeader();
 				}
-			case STATE_BUFFER	:
-				if (bufferCount > 0) {
-					return buffer[--bufferCount];
-				}
-				else {
-					state = INITIAL_STATE;
-					return read();
-				}
-			default :
-				throw new UnsupportedOperationException("Automat state ["+state+"] is not supported yet");
+			}
+			return total;
 		}
 	}
 
-	private int mandatoryRead(final String cause) throws IOException {
-		final int	value = nested.read();
-		
-		if (value == -1) {
-			throw new EOFException("Unexpected EOF ("+cause+")");
+	@Override
+	public int available() throws IOException {
+		if (separator < LS.length) {
+			return LS.length - separator;
 		}
 		else {
-			return value;
+			return Math.min(remaining, nested.available());
+		}
+	}
+
+	private void readHeader() throws IOException {
+		readFully(header, header.length, "header truncated");
+		descriptor = header[0] & 0xFF;
+		remaining = ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+
+		if ((descriptor & BlockOutputStream.DESCRIPTOR_RESTART) != 0) {
+			if (remaining == 0) {
+				throw new IOException("Empty restart marker block");
+			}
+			else {
+				final byte[]	marker = new byte[remaining];
+
+				readFully(marker, marker.length, "restart marker truncated");
+				remaining = 0;
+				throw new RestartMarkerDetectedException(marker);
+			}
+		}
+		else if (remaining == 0) {
+			endOfBlock();
+		}
+	}
+
+	private void endOfBlock() {
+		if ((descriptor & BlockOutputStream.DESCRIPTOR_EOR) != 0) {
+			separator = 0;
+		}
+		if ((descriptor & BlockOutputStream.DESCRIPTOR_EOF) != 0) {
+			eof = true;
+		}
+	}
+
+	private void readFully(final byte[] target, final int length, final String cause) throws IOException {
+		int	displ = 0;
+
+		while (displ < length) {
+			final int	count = nested.read(target, displ, length - displ);
+
+			if (count < 0) {
+				throw new EOFException("Unexpected EOF ("+cause+")");
+			}
+			else {
+				displ += count;
+			}
 		}
 	}
 }
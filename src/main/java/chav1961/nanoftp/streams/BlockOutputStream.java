@@ -2,47 +2,152 @@ package chav1961.nanoftp.streams;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import chav1961.nanoftp.utils.BufferPool;
+
+/**
+ * RFC959 part 3.4.2. Block mode encoder. Content written is collected in the internal buffer and is sent as full
+ * blocks of {@value #MAX_BLOCK_SIZE} bytes (or of the leased buffer size less the header, if it is smaller), header and
+ * payload of every block are passed to the nested stream by the only write call. The last block is marked with EOF
+ * descriptor on {@link #close()}, nested stream is not closed.
+ */
+public class BlockOutputStream extends FramedOutputStream {
+	public static final int		MAX_BLOCK_SIZE = 0xFFFF;
+	static final int			DESCRIPTOR_EOR = 0b10000000;
+	static final int			DESCRIPTOR_EOF = 0b01000000;
+	static final int			DESCRIPTOR_RESTART = 0b00010000;
+	static final int			HEADER_SIZE = 3;
+
+	private static final int	BUFFER_SIZE = 64 * 1024;
 
-public class BlockOutputStream extends OutputStream {
 	private final OutputStream	nested;
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private final byte[]		buffer;
+	private final int			blockSize;
+	private int					count = 0;
+	private boolean				closed = false;
 
 	public BlockOutputStream(final OutputStream nested) {
+		this(nested, null);
+	}
+
+	/**
+	 * @param nested stream to write blocks to. Can't be null
+	 * @param pool pool to lease block buffer from. Can be null. Buffer is returned to the pool on {@link #close()} only
+	 */
+	public BlockOutputStream(final OutputStream nested, final BufferPool pool) {
 		if (nested == null) {
 			throw new NullPointerException("Nested stream can't be null");
 		}
 		else {
 			this.nested = nested;
+			this.pool = pool;
+			this.leased = pool != null ? pool.acquireHeap(BUFFER_SIZE) : null;
+			this.buffer = leased != null ? leased.array() : new byte[HEADER_SIZE + MAX_BLOCK_SIZE];
+			// Pooled buffer has a power-of-two size, so its blocks are a bit shorter than the max ones
+			this.blockSize = Math.min(MAX_BLOCK_SIZE, buffer.length - HEADER_SIZE);
+		}
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		ensureOpen();
+		if (count == blockSize) {
+			writeBlock(0);
+		}
+		buffer[HEADER_SIZE + count++] = (byte)b;
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
+		}
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
+		}
+		else {
+			ensureOpen();
+			while (len > 0) {
+				// Full block is written lazily, so the last one can be marked with EOF on close()
+				if (count == blockSize) {
+					writeBlock(0);
+				}
+				final int	size = Math.min(len, blockSize - count);
+
+				System.arraycopy(b, off, buffer, HEADER_SIZE + count, size);
+				count += size;
+				off += size;
+				len -= size;
+			}
 		}
 	}
 
+	/**
+	 * {@inheritDoc} Content is sent immediately as the block with EOR descriptor.
+	 */
 	@Override
-	public void write(int b) throws IOException {
-		// TODO Auto-generated method stub
-		
+	public void writeEndOfRecord() throws IOException {
+		ensureOpen();
+		writeBlock(DESCRIPTOR_EOR);
 	}
-	
+
+	@Override
 	public void writeRestartMarker(final byte[] marker) throws IOException {
 		if (marker == null || marker.length == 0) {
 			throw new IllegalArgumentException("Restart marker can't be neither null nor empty array");
 		}
+		else if (marker.length > blockSize) {
+			throw new IllegalArgumentException("Restart marker length ["+marker.length+"] is greater than "+blockSize);
+		}
 		else {
-			writeBlock();
-			nested.write(0b00001000);
-			nested.write(0);
-			nested.write(marker.length);
-			nested.write(marker);
+			ensureOpen();
+			if (count > 0) {
+				writeBlock(0);
+			}
+			System.arraycopy(marker, 0, buffer, HEADER_SIZE, marker.length);
+			count = marker.length;
+			writeBlock(DESCRIPTOR_RESTART);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (!closed && count > 0) {
+			writeBlock(0);
 		}
+		nested.flush();
 	}
-	
+
 	@Override
 	public void close() throws IOException {
-		// TODO Auto-generated method stub
+		if (!closed) {
+			try {
+				writeBlock(DESCRIPTOR_EOF);
+				nested.flush();
+			} finally {
+				closed = true;
+				if (pool != null) {
+					pool.release(leased);
+				}
+			}
+		}
 		super.close();
 	}
 
-	private void writeBlock() {
-		// TODO Auto-generated method stub
-		
+	private void writeBlock(final int descriptor) throws IOException {
+		buffer[0] = (byte)descriptor;
+		buffer[1] = (byte)(count >> 8);
+		buffer[2] = (byte)count;
+		nested.write(buffer, 0, HEADER_SIZE + count);
+		count = 0;
 	}
 
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+	}
 }
@@ -3,108 +3,235 @@ package chav1961.nanoftp.streams;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import chav1961.nanoftp.utils.BufferPool;
+
+/**
+ * RFC959 part 3.4.3. Compressed mode decoder. Compressed content is read from the nested stream into the internal
+ * buffer, data strings are copied to the caller's array in bulk and filler and replicated strings are expanded by
+ * array fills. End of record (EOR escape sequence) is returned as the local line separator, EOF escape sequence
+ * ends the stream. Restart marker escape sequence is reported by the {@link RestartMarkerDetectedException},
+ * reading can be continued after it. Nested stream is not closed by {@link #close()}.
+ */
 public class CompressedInputStream extends InputStream {
-	private static final int	INITIAL_STATE = 0; 
-	private static final int	STATE_DATA = 1; 
-	private static final int	STATE_REPLICA = 2; 
-	private static final int	STATE_FILLER = 3; 
-	
+	private static final byte[]	LS = System.lineSeparator().getBytes();
+	private static final int	BUFFER_SIZE = 64 * 1024;
+	private static final int	STATE_DATA = 0;
+	private static final int	STATE_REPLICA = 1;
+	private static final int	STATE_FILLER = 2;
+
 	private final InputStream	nested;
 	private final byte			filler;
-	private int		state = INITIAL_STATE;
-	private int		counter = 0;
-	private int		replicator;
-	
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private final byte[]		buffer;
+	private final byte[]		single = new byte[1];
+	private int					displ = 0;
+	private int					limit = 0;
+	private int					state = STATE_DATA;
+	private int					counter = 0;
+	private byte				replicator;
+	private int					separator = LS.length;
+	private boolean				eof = false;
+	private boolean				closed = false;
+
 	public CompressedInputStream(final InputStream nested, final byte filler) {
+		this(nested, filler, null);
+	}
+
+	/**
+	 * @param nested stream to read compressed content from. Can't be null
+	 * @param filler filler byte (space for TYPE A, zero for TYPE I)
+	 * @param pool pool to lease input buffer from. Can be null. Buffer is returned to the pool on {@link #close()}
+	 */
+	public CompressedInputStream(final InputStream nested, final byte filler, final BufferPool pool) {
 		if (nested == null) {
 			throw new NullPointerException("Nested input stream can't be null");
 		}
 		else {
 			this.nested = nested;
 			this.filler = filler;
+			this.pool = pool;
+			this.leased = pool != null ? pool.acquireHeap(BUFFER_SIZE) : null;
+			this.buffer = leased != null ? leased.array() : new byte[BUFFER_SIZE];
 		}
 	}
-	
-	
+
 	@Override
 	public int read() throws IOException {
-		int	value;
-		
-		switch (state) {
-			case INITIAL_STATE	:
-				value = nested.read();
-				
-				if ((value & 0b10000000) == 0) {	// Regular string
-					state = STATE_DATA;
-					counter = value & 0b01111111;
-					return read();
+		int	count;
+
+		while ((count = read(single, 0, 1)) == 0) {
+		}
+		return count < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
+		}
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
+		}
+		else if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		else if (len == 0) {
+			return 0;
+		}
+		else {
+			int	total = 0;
+
+			while (total < len) {
+				if (separator < LS.length) {
+					final int	size = Math.min(len - total, LS.length - separator);
+
+					System.arraycopy(LS, separator, b, off + total, size);
+					separator += size;
+					total += size;
 				}
-				else if ((value & 0b11000000) == 0b10000000) {	// Replicator
-					state = STATE_REPLICA;
-					counter = value & 0b00111111;
-					replicator = mandatoryRead("replicator truncated");
+				else if (counter > 0) {
+					final int	size;
+
+					switch (state) {
+						case STATE_DATA		:
+							if (displ == limit) {
+								if (total > 0) {
+									return total;
+								}
+								else if (!fill()) {
+									throw new EOFException("Unexpected EOF (data string truncated)");
+								}
+							}
+							size = Math.min(Math.min(len - total, counter), limit - displ);
+							System.arraycopy(buffer, displ, b, off + total, size);
+							displ += size;
+							break;
+						case STATE_REPLICA	:
+							size = Math.min(len - total, counter);
+							Arrays.fill(b, off + total, off + total + size, replicator);
+							break;
+						case STATE_FILLER	:
+							size = Math.min(len - total, counter);
+							Arrays.fill(b, off + total, off + total + size, filler);
+							break;
+						default :
+							throw new UnsupportedOperationException("Automat state ["+state+"] is not supported yet");
+					}
+					counter -= size;
+					total += size;
 				}
-				else if ((value & 0b11000000) == 0b11000000) {	// Filler
-					state = STATE_FILLER;
-					counter = value & 0b00111111;
-					return read();
+				else if (eof) {
+					return total == 0 ? -1 : total;
 				}
-				else if (value == 0) {	// Escape sequence
-					value = mandatoryRead("escape descriptor field truncated");
-					if ((value & 0b10000000) != 0) {
-						return '\n';
-					}
-					else if ((value & 0b01000000) != 0) {
-						return -1;
-					}
-					else if ((value & 0b00010000) != 0) {
-						final int		len = (mandatoryRead("escape length field truncated") << 8) | mandatoryRead("escape length field truncated");
-						final byte[]	marker = new byte[len];
-						
-						for(int index = 0; index < len; index++) {
-							marker[index] = (byte)mandatoryRead("escape restart marker truncated");
-						}
-						throw new RestartMarkerDetectedException(marker);
-					}
-					else {
-						counter = (mandatoryRead("escape length field truncated") << 8) | mandatoryRead("escape length field truncated"); 
-						return read();
-					}
+				else if (total > 0 && (displ == limit || buffer[displ] == CompressedOutputStream.ESCAPE)) {
+					// Don't block on the nested stream when some content is already available, and never throw restart marker after it
+					break;
 				}
 				else {
-					throw new IOException("Compressed structure corruption detected (unknown prefix)");
+					readHeader();
 				}
-			case STATE_DATA		:
-				value = mandatoryRead("data block truncated");
-				
-				if (--counter == 0) {
-					state = INITIAL_STATE;
-				}
-				return value;
-			case STATE_REPLICA	:
-				if (--counter == 0) {
-					state = INITIAL_STATE;
+			}
+			return total;
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (separator < LS.length) {
+			return LS.length - separator;
+		}
+		else if (counter > 0) {
+			return state == STATE_DATA ? Math.min(counter, limit - displ) : counter;
+		}
+		else {
+			return 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (pool != null) {
+				pool.release(leased);
+			}
+		}
+	}
+
+	private void readHeader() throws IOException {
+		if (displ == limit && !fill()) {
+			// Connection closed without EOF escape sequence, treat it as in the stream mode
+			eof = true;
+			return;
+		}
+		final int	value = buffer[displ++] & 0xFF;
+
+		if (value == CompressedOutputStream.ESCAPE) {
+			final int	descriptor = next("escape sequence truncated");
+
+			if ((descriptor & BlockOutputStream.DESCRIPTOR_RESTART) != 0) {
+				// Marker content is the data string following the escape sequence
+				final int	length = next("restart marker truncated");
+
+				if (length == 0 || (length & 0b10000000) != 0) {
+					throw new IOException("Compressed structure corruption detected (restart marker is not a data string)");
 				}
-				return replicator;
-			case STATE_FILLER	:
-				if (--counter == 0) {
-					state = INITIAL_STATE;
+				else {
+					final byte[]	marker = new byte[length];
+
+					for (int index = 0; index < length; index++) {
+						marker[index] = (byte)next("restart marker truncated");
+					}
+					throw new RestartMarkerDetectedException(marker);
 				}
-				return filler & 0xFF;
-			default :
-				throw new UnsupportedOperationException("Automat state ["+state+"] is not supported yet");
+			}
+			if ((descriptor & BlockOutputStream.DESCRIPTOR_EOR) != 0) {
+				separator = 0;
+			}
+			if ((descriptor & BlockOutputStream.DESCRIPTOR_EOF) != 0) {
+				eof = true;
+			}
+		}
+		else if ((value & 0b10000000) == 0) {
+			state = STATE_DATA;
+			counter = value;
+		}
+		else if ((value & 0b11000000) == CompressedOutputStream.PREFIX_REPLICA) {
+			state = STATE_REPLICA;
+			counter = value & 0b00111111;
+			replicator = (byte)next("replicated string truncated");
+		}
+		else {
+			state = STATE_FILLER;
+			counter = value & 0b00111111;
 		}
 	}
-	
-	private int mandatoryRead(final String cause) throws IOException {
-		final int	value = nested.read();
-		
-		if (value == -1) {
+
+	private int next(final String cause) throws IOException {
+		if (displ == limit && !fill()) {
 			throw new EOFException("Unexpected EOF ("+cause+")");
 		}
 		else {
-			return value;
+			return buffer[displ++] & 0xFF;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int	count;
+
+		while ((count = nested.read(buffer, 0, buffer.length)) == 0) {
+		}
+		if (count < 0) {
+			return false;
+		}
+		else {
+			displ = 0;
+			limit = count;
+			return true;
 		}
 	}
 }
@@ -2,81 +2,290 @@ package chav1961.nanoftp.streams;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import chav1961.nanoftp.utils.BufferPool;
+
+/**
+ * RFC959 part 3.4.3. Compressed mode encoder. Content written is scanned eight bytes at a time: spans without adjacent
+ * equal bytes are copied to the data strings in bulk, and runs of equal bytes are measured by comparing whole words.
+ * Runs of filler bytes (3 and more) and of other bytes (4 and more) are sent as filler and replicated strings,
+ * shorter ones are cheaper as data. Run at the end of the content written is kept until the next write, so runs
+ * split across write calls are not broken. All the strings are collected in the output buffer, which is passed to
+ * the nested stream when full. EOF escape sequence is sent on {@link #close()}, nested stream is not closed.
+ */
+public class CompressedOutputStream extends FramedOutputStream {
+	static final int			MAX_DATA_COUNT = 127;
+	static final int			MAX_RUN_COUNT = 63;
+	static final int			PREFIX_REPLICA = 0b10000000;
+	static final int			PREFIX_FILLER = 0b11000000;
+	static final int			ESCAPE = 0;
+	private static final int	MIN_FILLER_RUN = 3;
+	private static final int	MIN_REPLICA_RUN = 4;
+	private static final int	BUFFER_SIZE = 64 * 1024;
+	private static final long	ONES = 0x0101010101010101L;
+	private static final long	HIGHS = 0x8080808080808080L;
 
-public class CompressedOutputStream extends OutputStream {
-	private static final int	MAX_REPLICA_COUNT = 31;
-	private static final int	MAX_FILLER_COUNT = 31;
-	
 	private final OutputStream	nested;
-	private final byte		filler;
-	private final byte[]	buffer = new byte[128];
-	private int		prevVal = -1;
-	private int		displ = 0;
-	private int		fillerCount = 0;
-	private int		repliCount = 0;
-	
+	private final byte			filler;
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private final byte[]		buffer;
+	private final byte[]		single = new byte[1];
+	private boolean				closed = false;
+	private int					displ = 0;
+	private int					dataHeader = 0;
+	private int					dataCount = 0;
+	private byte				runValue = 0;
+	private int					runCount = 0;
+
 	public CompressedOutputStream(final OutputStream nested, final byte filler) {
+		this(nested, filler, null);
+	}
+
+	/**
+	 * @param nested stream to write compressed content to. Can't be null
+	 * @param filler filler byte (space for TYPE A, zero for TYPE I)
+	 * @param pool pool to lease output buffer from. Can be null. Buffer is returned to the pool on {@link #close()} only
+	 */
+	public CompressedOutputStream(final OutputStream nested, final byte filler, final BufferPool pool) {
 		if (nested == null) {
 			throw new NullPointerException("Nested output stream can't be null");
 		}
 		else {
 			this.nested = nested;
 			this.filler = filler;
+			this.pool = pool;
+			this.leased = pool != null ? pool.acquireHeap(BUFFER_SIZE) : null;
+			this.buffer = leased != null ? leased.array() : new byte[BUFFER_SIZE];
 		}
 	}
 
 	@Override
 	public void write(final int b) throws IOException {
-		final byte	val = (byte)(b & 0xFF);
-		
-		if (val == filler) {
-			if (++fillerCount >= MAX_FILLER_COUNT) {
-				nested.write(0b11000000 | (fillerCount & 0x3F));
-				fillerCount = 0;
-			}
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
 		}
-		else if (b == prevVal) {
-			if (++repliCount >= MAX_REPLICA_COUNT) {
-				nested.write(0b10000000 | (repliCount & 0x3F));
-				nested.write(prevVal);
-				repliCount = 0;
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
+		}
+		else {
+			final ByteBuffer	content = ByteBuffer.wrap(b);
+			final int			end = off + len;
+			int					index = off;
+
+			ensureOpen();
+			while (index < end) {
+				if (runCount > 0) {
+					if (b[index] == runValue) {
+						final int	count = runLength(content, index, end, runValue);
+
+						runCount += count;
+						index += count;
+						if (runCount >= BUFFER_SIZE) {
+							// Long runs are sent in parts to keep counter in range
+							closeRun();
+						}
+						continue;
+					}
+					else {
+						closeRun();
+					}
+				}
+				final int	runStart = nextRunCandidate(content, index, end);
+
+				if (runStart > index) {
+					appendData(b, index, runStart - index);
+					index = runStart;
+				}
+				runValue = b[index];
+				runCount = runLength(content, index, end, runValue);
+				index += runCount;
 			}
 		}
+	}
+
+	/**
+	 * {@inheritDoc} Record end is sent as escape sequence with EOR descriptor.
+	 */
+	@Override
+	public void writeEndOfRecord() throws IOException {
+		ensureOpen();
+		writeEscape(BlockOutputStream.DESCRIPTOR_EOR);
+	}
+
+	/**
+	 * {@inheritDoc} Marker is sent as escape sequence with restart marker descriptor followed by data string with the marker content.
+	 */
+	@Override
+	public void writeRestartMarker(final byte[] marker) throws IOException {
+		if (marker == null || marker.length == 0) {
+			throw new IllegalArgumentException("Restart marker can't be neither null nor empty array");
+		}
+		else if (marker.length > MAX_DATA_COUNT) {
+			throw new IllegalArgumentException("Restart marker length ["+marker.length+"] is greater than "+MAX_DATA_COUNT);
+		}
 		else {
-			if (fillerCount > 0) {
-				nested.write(0b11000000 | (fillerCount & 0x3F));
-				fillerCount = 0;
+			ensureOpen();
+			writeEscape(BlockOutputStream.DESCRIPTOR_RESTART);
+			appendData(marker, 0, marker.length);
+			closeData();
+			flushBuffer();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (!closed) {
+			closeRun();
+			closeData();
+			flushBuffer();
+		}
+		nested.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			try {
+				writeEscape(BlockOutputStream.DESCRIPTOR_EOF);
+				flushBuffer();
+				nested.flush();
+			} finally {
+				closed = true;
+				if (pool != null) {
+					pool.release(leased);
+				}
 			}
-			if (repliCount >= 0) {
-				nested.write(0b10000000 | (repliCount & 0x3F));
-				nested.write(prevVal);
-				repliCount = 0;
+		}
+		super.close();
+	}
+
+	private void closeRun() throws IOException {
+		if (runCount >= (runValue == filler ? MIN_FILLER_RUN : MIN_REPLICA_RUN)) {
+			closeData();
+			while (runCount > 0) {
+				final int	count = Math.min(runCount, MAX_RUN_COUNT);
+
+				ensureRoom(2);
+				if (runValue == filler) {
+					buffer[displ++] = (byte)(PREFIX_FILLER | count);
+				}
+				else {
+					buffer[displ++] = (byte)(PREFIX_REPLICA | count);
+					buffer[displ++] = runValue;
+				}
+				runCount -= count;
 			}
-			if (displ >= buffer.length) {
-				nested.write(displ);
-				nested.write(buffer, 0, displ);
-				displ = 0;
+		}
+		else {
+			while (runCount > 0) {
+				if (dataCount == 0 || dataCount == MAX_DATA_COUNT) {
+					openData();
+				}
+				buffer[displ++] = runValue;
+				dataCount++;
+				runCount--;
 			}
-			buffer[displ++] = val;
-			prevVal = b;
 		}
 	}
-	
-	@Override
-	public void flush() throws IOException {
-		if (fillerCount > 0) {
-			nested.write(0b11000000 | (fillerCount & 0x3F));
-			fillerCount = 0;
+
+	private void appendData(final byte[] content, int from, int length) throws IOException {
+		while (length > 0) {
+			if (dataCount == 0 || dataCount == MAX_DATA_COUNT) {
+				openData();
+			}
+			final int	count = Math.min(length, MAX_DATA_COUNT - dataCount);
+
+			System.arraycopy(content, from, buffer, displ, count);
+			displ += count;
+			dataCount += count;
+			from += count;
+			length -= count;
 		}
-		if (repliCount > 0) {
-			nested.write(0b10000000 | (repliCount & 0x3F));
-			nested.write(prevVal);
-			repliCount = 0;
+	}
+
+	private void openData() throws IOException {
+		closeData();
+		// Room for the longest data string is reserved, so the string is never split by the buffer flush
+		ensureRoom(1 + MAX_DATA_COUNT);
+		dataHeader = displ++;
+	}
+
+	private void closeData() {
+		if (dataCount > 0) {
+			buffer[dataHeader] = (byte)dataCount;
+			dataCount = 0;
+		}
+	}
+
+	private void writeEscape(final int descriptor) throws IOException {
+		closeRun();
+		closeData();
+		ensureRoom(2);
+		buffer[displ++] = ESCAPE;
+		buffer[displ++] = (byte)descriptor;
+	}
+
+	private void ensureRoom(final int size) throws IOException {
+		if (displ + size > buffer.length) {
+			flushBuffer();
 		}
+	}
+
+	private void flushBuffer() throws IOException {
 		if (displ > 0) {
-			nested.write(displ);
 			nested.write(buffer, 0, displ);
 			displ = 0;
 		}
 	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+	}
+
+	/**
+	 * Find the first byte which is equal to the next one (possible run start).
+	 * @return index found or index of the last byte if not found
+	 */
+	private static int nextRunCandidate(final ByteBuffer content, final int from, final int to) {
+		int	index = from;
+
+		while (index + Long.BYTES < to) {
+			// Zero byte in the XOR of the word and the word shifted by one byte means two adjacent equal bytes
+			final long	diff = content.getLong(index) ^ content.getLong(index + 1);
+
+			if (((diff - ONES) & ~diff & HIGHS) != 0) {
+				break;
+			}
+			else {
+				index += Long.BYTES;
+			}
+		}
+		while (index + 1 < to && content.get(index) != content.get(index + 1)) {
+			index++;
+		}
+		return index;
+	}
+
+	private static int runLength(final ByteBuffer content, final int from, final int to, final byte value) {
+		final long	pattern = ONES * (value & 0xFF);
+		int			index = from;
+
+		while (index + Long.BYTES <= to && content.getLong(index) == pattern) {
+			index += Long.BYTES;
+		}
+		while (index < to && content.get(index) == value) {
+			index++;
+		}
+		return index - from;
+	}
 }
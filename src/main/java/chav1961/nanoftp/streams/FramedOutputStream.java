@@ -0,0 +1,25 @@
+package chav1961.nanoftp.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base class for the encoders of the block and compressed transmission modes (RFC959 part 3.4.2, 3.4.3). Both modes
+ * can delimit records and embed restart markers into the data stream. Closing the stream sends EOF to the receiver
+ * and returns buffers leased to the pool, so when transmission fails, nested stream must be closed (broken) before
+ * closing the encoder, otherwise the receiver will take the broken content as complete.
+ */
+public abstract class FramedOutputStream extends OutputStream {
+	/**
+	 * Mark the content written after the last record end as a record.
+	 * @throws IOException on any I/O errors
+	 */
+	public abstract void writeEndOfRecord() throws IOException;
+
+	/**
+	 * Write restart marker. Content written before is sent immediately.
+	 * @param marker restart marker content (printable chars only). Can be neither null nor empty
+	 * @throws IOException on any I/O errors
+	 */
+	public abstract void writeRestartMarker(byte[] marker) throws IOException;
+}
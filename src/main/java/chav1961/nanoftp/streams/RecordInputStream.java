@@ -3,68 +3,179 @@ package chav1961.nanoftp.streams;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import chav1961.nanoftp.utils.BufferPool;
 
 /**
- * RFC959 part 3.4.1.
+ * RFC959 part 3.4.1. Record structure decoder for the stream mode. Content is read from the nested stream into the
+ * internal buffer and is scanned for 0xFF escapes eight bytes at a time, spans without them are copied to the caller's array in bulk. End of record is returned
+ * as the local line separator, EOF escape sequence ends the stream. Nested stream is not closed by {@link #close()}.
  */
 public class RecordInputStream extends InputStream {
 	private static final int	ESCAPE = 0xFF;
-	private static final char[]	LS = System.lineSeparator().toCharArray();
+	private static final byte[]	LS = System.lineSeparator().getBytes();
+	private static final int	BUFFER_SIZE = 64 * 1024;
+	private static final long	ONES = 0x0101010101010101L;
+	private static final long	HIGHS = 0x8080808080808080L;
+	private static final long	ESCAPES = ONES * ESCAPE;
 
 	private final InputStream	nested;
-	private final int[]	buffer = new int[3];
-	private int			count = 0;
-	private int			current = 0;
-	
+	private final BufferPool	pool;
+	private final ByteBuffer	wrapper;
+	private final byte[]		buffer;
+	private final byte[]		single = new byte[1];
+	private int					displ = 0;
+	private int					limit = 0;
+	private int					separator = LS.length;
+	private boolean				eof = false;
+	private boolean				closed = false;
+
 	public RecordInputStream(final InputStream nested) {
+		this(nested, null);
+	}
+
+	/**
+	 * @param nested stream to read records from. Can't be null
+	 * @param pool pool to lease input buffer from. Can be null. Buffer is returned to the pool on {@link #close()}
+	 */
+	public RecordInputStream(final InputStream nested, final BufferPool pool) {
 		if (nested == null) {
 			throw new NullPointerException("Nested input strean can't be null");
 		}
 		else {
 			this.nested = nested;
+			this.pool = pool;
+			this.wrapper = pool != null ? pool.acquireHeap(BUFFER_SIZE) : ByteBuffer.wrap(new byte[BUFFER_SIZE]);
+			this.buffer = wrapper.array();
 		}
 	}
 
 	@Override
 	public int read() throws IOException {
-		if (count > 0) {
-			final int	val = buffer[current++];
-			
-			if (current >= count) {
-				current = count = 0;
-			}
-			return val;
+		int	count;
+
+		while ((count = read(single, 0, 1)) == 0) {
+		}
+		return count < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
+		}
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
+		}
+		else if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		else if (len == 0) {
+			return 0;
 		}
 		else {
-			int	value = nested.read();
-			
-			if (value == -1) {
-				return value;
-			}
-			else if (value == ESCAPE) {	// Escape
-				value = nested.read();
-				
-				if (value == -1) {
-					throw new EOFException("EOF inside escape sequence");
+			int	total = 0;
+
+			while (total < len) {
+				if (separator < LS.length) {
+					final int	size = Math.min(len - total, LS.length - separator);
+
+					System.arraycopy(LS, separator, b, off + total, size);
+					separator += size;
+					total += size;
 				}
-				else if (value == ESCAPE) {
-					return value;
+				else if (eof) {
+					return total == 0 ? -1 : total;
 				}
-				else {
-					if ((value & 0b00000001) != 0) {
-						for(; count < LS.length; count++) {
-							buffer[count] = LS[count];
+				else if (limit - displ < 2 && (displ == limit || (buffer[displ] & 0xFF) == ESCAPE)) {
+					// Escape sequence must be complete before processing. Don't block on the nested stream when some content is already available
+					if (total > 0) {
+						break;
+					}
+					else if (!fill()) {
+						if (displ < limit) {
+							throw new EOFException("EOF inside escape sequence");
 						}
+						else {
+							// Connection closed without EOF escape sequence, treat it as in the stream mode
+							eof = true;
+						}
+					}
+				}
+				else if ((buffer[displ] & 0xFF) == ESCAPE) {
+					final int	code = buffer[displ + 1] & 0xFF;
+
+					displ += 2;
+					if (code == ESCAPE) {
+						b[off + total++] = (byte)ESCAPE;
 					}
-					if ((value & 0b00000010) != 0) {
-						buffer[count++] = -1;
+					else {
+						if ((code & 0b00000001) != 0) {
+							separator = 0;
+						}
+						if ((code & 0b00000010) != 0) {
+							eof = true;
+						}
 					}
-					return read();
 				}
+				else {
+					final int	index = indexOfEscape(displ, Math.min(limit, displ + len - total));
+
+					System.arraycopy(buffer, displ, b, off + total, index - displ);
+					total += index - displ;
+					displ = index;
+				}
+			}
+			return total;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (pool != null) {
+				pool.release(wrapper);
+			}
+		}
+	}
+
+	private int indexOfEscape(final int from, final int to) {
+		int	index = from;
+
+		while (index + Long.BYTES <= to) {
+			final long	word = wrapper.getLong(index) ^ ESCAPES;
+
+			if (((word - ONES) & ~word & HIGHS) != 0) {
+				break;
 			}
 			else {
-				return value;
+				index += Long.BYTES;
 			}
 		}
+		while (index < to && (buffer[index] & 0xFF) != ESCAPE) {
+			index++;
+		}
+		return index;
+	}
+
+	private boolean fill() throws IOException {
+		int	count;
+
+		if (displ > 0) {
+			System.arraycopy(buffer, displ, buffer, 0, limit - displ);
+			limit -= displ;
+			displ = 0;
+		}
+		while ((count = nested.read(buffer, limit, buffer.length - limit)) == 0) {
+		}
+		if (count < 0) {
+			return false;
+		}
+		else {
+			limit += count;
+			return true;
+		}
 	}
 }
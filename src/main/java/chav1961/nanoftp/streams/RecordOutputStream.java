@@ -2,60 +2,255 @@ package chav1961.nanoftp.streams;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import chav1961.nanoftp.utils.BufferPool;
 
 /**
- * RFC959 part 3.4.1.
+ * RFC959 part 3.4.1. Record structure encoder. Local lines are records, LF (or CRLF) ends the record. Content written
+ * is scanned for 0xFF, CR and LF eight bytes at a time, spans without them are copied in bulk. In the stream mode
+ * records are delimited by 0xFF escape sequences and the content is collected in the internal buffer. If the nested
+ * stream is {@link FramedOutputStream} (block or compressed mode), records are delimited by its
+ * {@link FramedOutputStream#writeEndOfRecord()}, 0xFF is not escaped, and {@link #close()} closes the nested stream
+ * to send EOF. Otherwise EOF escape sequence is sent on {@link #close()} and nested stream is not closed.
  */
 public class RecordOutputStream extends OutputStream {
 	private static final int	ESCAPE = 0xFF;
-	
+	private static final int	EOR = 0b00000001;
+	private static final int	EOF = 0b00000010;
+	private static final byte	CR = '\r';
+	private static final byte	LF = '\n';
+	private static final int	BUFFER_SIZE = 64 * 1024;
+	private static final long	ONES = 0x0101010101010101L;
+	private static final long	HIGHS = 0x8080808080808080L;
+	private static final long	ESCAPES = ONES * ESCAPE;
+	private static final long	CRS = ONES * CR;
+	private static final long	LFS = ONES * LF;
+
 	private final OutputStream	nested;
+	private final FramedOutputStream	framed;
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private final byte[]		buffer;
+	private final byte[]		single = new byte[1];
 	private boolean	closed = false;
+	private boolean	pendingCR = false;
 	private int		mask = 0;
-	
+	private int		displ = 0;
+
 	public RecordOutputStream(final OutputStream nested) {
+		this(nested, null);
+	}
+
+	/**
+	 * @param nested stream to write records to. Can't be null
+	 * @param pool pool to lease output buffer from (in the stream mode only). Can be null. Buffer is returned to the pool on {@link #close()} only
+	 */
+	public RecordOutputStream(final OutputStream nested, final BufferPool pool) {
 		if (nested == null) {
 			throw new NullPointerException("Nested output stream can't be null");
 		}
 		else {
 			this.nested = nested;
+			this.framed = nested instanceof FramedOutputStream ? (FramedOutputStream)nested : null;
+			this.pool = framed == null ? pool : null;
+			this.leased = this.pool != null ? this.pool.acquireHeap(BUFFER_SIZE) : null;
+			this.buffer = leased != null ? leased.array() : (framed == null ? new byte[BUFFER_SIZE] : null);
 		}
 	}
 
 	@Override
 	public void write(final int b) throws IOException {
-		if (b == 0xFF) {
-			nested.write(ESCAPE);
-			nested.write(b);
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException("Content can't be null");
 		}
-		else if (b == '\r') {
-			mask |= 0b00000001;
+		else if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("Offset ["+off+"] or length ["+len+"] out of range 0.."+b.length);
 		}
-		else if (b == '\n') {
-			mask |= 0b00000001;
+		else if (closed) {
+			throw new IOException("Stream is closed");
 		}
 		else {
-			finish();
-			nested.write(b);
+			final ByteBuffer	content = ByteBuffer.wrap(b);
+			final int			end = off + len;
+			int					index = off;
+
+			while (index < end) {
+				final int	found = indexOfSpecial(content, index, end);
+
+				if (found > index) {
+					finishLine();
+					put(b, index, found - index);
+				}
+				if (found < end) {
+					switch (b[found]) {
+						case LF		:
+							// CR before LF is a part of the line end
+							pendingCR = false;
+							if ((mask & EOR) != 0) {
+								writeMask();
+							}
+							mask |= EOR;
+							break;
+						case CR		:
+							finishLine();
+							pendingCR = true;
+							break;
+						default :
+							finishLine();
+							if (framed != null) {
+								framed.write(ESCAPE);
+							}
+							else {
+								put(ESCAPE);
+								put(ESCAPE);
+							}
+							break;
+					}
+				}
+				index = found + 1;
+			}
 		}
 	}
-	
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		nested.flush();
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (!closed) {
-			mask |= 0b00000010;
-			finish();
-			closed = true;
+			try {
+				// Pending CR means there is no pending record end, so EOF can be merged with the record end only
+				if (pendingCR) {
+					finishLine();
+				}
+				if (framed != null) {
+					writeMask();
+				}
+				else {
+					mask |= EOF;
+					finish();
+				}
+			} finally {
+				closed = true;
+				try {
+					// Framed stream is closed on failures too, so it returns its leased buffer
+					if (framed != null) {
+						framed.close();
+					}
+				} finally {
+					if (pool != null) {
+						pool.release(leased);
+					}
+				}
+			}
 		}
 		super.close();
 	}
 
+	/**
+	 * Send pending record end and flush nested stream.
+	 * @throws IOException on any I/O errors
+	 */
 	public void finish() throws IOException {
 		if (mask != 0) {
-			nested.write(ESCAPE);
-			nested.write(mask);
+			writeMask();
+			flush();
+		}
+	}
+
+	private void writeMask() throws IOException {
+		if (mask != 0) {
+			if (framed != null) {
+				framed.writeEndOfRecord();
+			}
+			else {
+				put(ESCAPE);
+				put(mask);
+			}
 			mask = 0;
-			nested.flush();
 		}
 	}
+
+	private void finishLine() throws IOException {
+		writeMask();
+		if (pendingCR) {
+			put(CR);
+			pendingCR = false;
+		}
+	}
+
+	private void put(final int b) throws IOException {
+		if (framed != null) {
+			framed.write(b);
+		}
+		else {
+			if (displ == buffer.length) {
+				flushBuffer();
+			}
+			buffer[displ++] = (byte)b;
+		}
+	}
+
+	private void put(final byte[] content, int from, int length) throws IOException {
+		if (framed != null) {
+			framed.write(content, from, length);
+		}
+		else {
+			while (length > 0) {
+				if (displ == buffer.length) {
+					flushBuffer();
+				}
+				final int	count = Math.min(length, buffer.length - displ);
+
+				System.arraycopy(content, from, buffer, displ, count);
+				displ += count;
+				from += count;
+				length -= count;
+			}
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (displ > 0) {
+			nested.write(buffer, 0, displ);
+			displ = 0;
+		}
+	}
+
+	private static int indexOfSpecial(final ByteBuffer content, final int from, final int to) {
+		int	index = from;
+
+		while (index + Long.BYTES <= to) {
+			final long	word = content.getLong(index);
+			final long	escapes = word ^ ESCAPES, crs = word ^ CRS, lfs = word ^ LFS;
+
+			if ((((escapes - ONES) & ~escapes | (crs - ONES) & ~crs | (lfs - ONES) & ~lfs) & HIGHS) != 0) {
+				break;
+			}
+			else {
+				index += Long.BYTES;
+			}
+		}
+		while (index < to) {
+			final byte	b = content.get(index);
+
+			if (b == LF || b == CR || b == (byte)ESCAPE) {
+				return index;
+			}
+			else {
+				index++;
+			}
+		}
+		return to;
+	}
 }
@@ -0,0 +1,68 @@
+package chav1961.nanoftp.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import chav1961.nanoftp.utils.BufferPool;
+
+/**
+ * 'MODE Z' decoder. Unlike {@link InflaterInputStream}, input buffer is leased from the pool and is returned on
+ * {@link #close()}, which closes neither nested stream nor the inflater (inflater is owned by the caller, which usually
+ * returns it to its pool).
+ */
+public class ZlibInputStream extends InflaterInputStream {
+	private static final int	BUFFER_SIZE = 64 * 1024;
+
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private boolean				closed = false;
+
+	/**
+	 * @param nested stream to read zlib stream from. Can't be null
+	 * @param inflater inflater to use. Can't be null
+	 * @param pool pool to lease input buffer from. Can't be null. Buffer is returned to the pool on {@link #close()}
+	 */
+	public ZlibInputStream(final InputStream nested, final Inflater inflater, final BufferPool pool) {
+		// Super class buffer is replaced by the leased one, so the least possible buffer is requested
+		super(nested, inflater, 1);
+		if (pool == null) {
+			throw new NullPointerException("Buffer pool can't be null");
+		}
+		else {
+			this.pool = pool;
+			this.leased = pool.acquireHeap(BUFFER_SIZE);
+			this.buf = leased.array();
+		}
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		else {
+			return super.read(b, off, len);
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		else {
+			return super.available();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			pool.release(leased);
+		}
+	}
+}
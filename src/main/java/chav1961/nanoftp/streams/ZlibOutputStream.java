@@ -0,0 +1,63 @@
+package chav1961.nanoftp.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import chav1961.nanoftp.utils.BufferPool;
+
+/**
+ * 'MODE Z' encoder. Unlike {@link DeflaterOutputStream}, output buffer is leased from the pool and is returned on
+ * {@link #close()}, which finishes zlib stream, but closes neither nested stream nor the deflater (deflater is owned
+ * by the caller, which usually returns it to its pool).
+ */
+public class ZlibOutputStream extends DeflaterOutputStream {
+	private static final int	BUFFER_SIZE = 64 * 1024;
+
+	private final BufferPool	pool;
+	private final ByteBuffer	leased;
+	private boolean				closed = false;
+
+	/**
+	 * @param nested stream to write zlib stream to. Can't be null
+	 * @param deflater deflater to use. Can't be null
+	 * @param pool pool to lease output buffer from. Can't be null. Buffer is returned to the pool on {@link #close()} only
+	 */
+	public ZlibOutputStream(final OutputStream nested, final Deflater deflater, final BufferPool pool) {
+		// Super class buffer is replaced by the leased one, so the least possible buffer is requested
+		super(nested, deflater, 1);
+		if (pool == null) {
+			throw new NullPointerException("Buffer pool can't be null");
+		}
+		else {
+			this.pool = pool;
+			this.leased = pool.acquireHeap(BUFFER_SIZE);
+			this.buf = leased.array();
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		else {
+			super.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			try {
+				finish();
+				out.flush();
+			} finally {
+				closed = true;
+				pool.release(leased);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package chav1961.nanoftp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import chav1961.purelib.basic.interfaces.LoggerFacade;
+import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
+
+/**
+ * Server-wide pool of reusable byte buffers. Buffers are grouped by power-of-two size classes from 4 KiB to 1 MiB,
+ * larger requests are served without pooling. Direct (off-heap) buffers are intended for channel I/O, heap buffers
+ * are intended for stream codecs, which need to pass byte arrays to nested streams. Every leased buffer must be returned
+ * by {@link #release(ByteBuffer)}. In debug mode the pool remembers lease points and reports unreleased buffers on close.
+ */
+public class BufferPool implements AutoCloseable {
+	private static final int	MIN_SHIFT = 12;
+	private static final int	MAX_SHIFT = 20;
+	private static final int	CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	private final ArrayBlockingQueue<ByteBuffer>[]	directPool;
+	private final ArrayBlockingQueue<ByteBuffer>[]	heapPool;
+	private final LoggerFacade			logger;
+	private final boolean				debugMode;
+	private final Map<ByteBuffer, Throwable>	leased;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(final int maxPooledPerClass, final LoggerFacade logger, final boolean debugMode) {
+		if (maxPooledPerClass <= 0) {
+			throw new IllegalArgumentException("Max pooled buffers per class ["+maxPooledPerClass+"] must be positive");
+		}
+		else if (logger == null) {
+			throw new NullPointerException("Logger can't be null");
+		}
+		else {
+			this.directPool = (ArrayBlockingQueue<ByteBuffer>[])new ArrayBlockingQueue<?>[CLASSES];
+			this.heapPool = (ArrayBlockingQueue<ByteBuffer>[])new ArrayBlockingQueue<?>[CLASSES];
+			for (int index = 0; index < CLASSES; index++) {
+				this.directPool[index] = new ArrayBlockingQueue<>(maxPooledPerClass);
+				this.heapPool[index] = new ArrayBlockingQueue<>(maxPooledPerClass);
+			}
+			this.logger = logger;
+			this.debugMode = debugMode;
+			this.leased = debugMode ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+		}
+	}
+
+	public ByteBuffer acquire(final int size) {
+		return acquire(size, true);
+	}
+
+	public ByteBuffer acquireHeap(final int size) {
+		return acquire(size, false);
+	}
+
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null) {
+			throw new NullPointerException("Buffer to release can't be null");
+		}
+		else {
+			if (debugMode && leased.remove(buffer) == null) {
+				throw new IllegalStateException("Buffer to release is not leased from the pool or is released twice");
+			}
+			final int	index = sizeClass(buffer.capacity());
+
+			if (index < CLASSES && buffer.capacity() == 1 << (index + MIN_SHIFT)) {
+				(buffer.isDirect() ? directPool : heapPool)[index].offer(buffer);
+			}
+		}
+	}
+
+	public int getLeasedCount() {
+		if (debugMode) {
+			return leased.size();
+		}
+		else {
+			throw new IllegalStateException("Leased buffers are tracked in debug mode only");
+		}
+	}
+
+	@Override
+	public void close() {
+		if (debugMode) {
+			final List<Throwable>	leaks;
+
+			synchronized (leased) {
+				leaks = new ArrayList<>(leased.values());
+			}
+			for (Throwable leak : leaks) {
+				logger.message(Severity.warning, leak, "Buffer leak detected: buffer was not returned to the pool");
+			}
+		}
+		for (int index = 0; index < CLASSES; index++) {
+			directPool[index].clear();
+			heapPool[index].clear();
+		}
+	}
+
+	private ByteBuffer acquire(final int size, final boolean direct) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Buffer size ["+size+"] must be positive");
+		}
+		else {
+			final int	index = sizeClass(size);
+			ByteBuffer	result;
+
+			if (index >= CLASSES) {
+				result = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			}
+			else {
+				result = (direct ? directPool : heapPool)[index].poll();
+				if (result == null) {
+					result = direct ? ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT)) : ByteBuffer.allocate(1 << (index + MIN_SHIFT));
+				}
+				else {
+					result.clear();
+				}
+			}
+			result.order(ByteOrder.BIG_ENDIAN);
+			if (debugMode) {
+				leased.put(result, new Throwable("Buffer lease point"));
+			}
+			return result;
+		}
+	}
+
+	private static int sizeClass(final int size) {
+		if (size <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		else {
+			return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package chav1961.nanoftp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide cache of file content for BINARY RETR. Content is kept in direct (off-heap) buffers, the cache is keyed
+ * by canonical file path and every entry remembers file size and modification time, so changed files are reloaded
+ * automatically. Total size of cached content is limited by the byte budget, least recently used entries are evicted
+ * first. Buffers returned are read-only duplicates, so eviction never affects transfers in progress.
+ */
+public class ContentCache {
+	private final long				capacity;
+	private final long				maxEntrySize;
+	private final Map<String, Entry>	entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLong		hits = new AtomicLong();
+	private final AtomicLong		misses = new AtomicLong();
+	private final AtomicLong		evictions = new AtomicLong();
+	private long					size = 0;
+
+	public ContentCache(final long capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cache capacity ["+capacity+"] must be positive");
+		}
+		else {
+			this.capacity = capacity;
+			this.maxEntrySize = Math.min(Math.max(capacity / 8, 1), Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Get file content from the cache. Missing or outdated content will be loaded when it fits the cache.
+	 * @param file file to get content for. Can't be null
+	 * @return read-only buffer with the file content or null when file is too large to cache
+	 * @throws IOException on any I/O errors
+	 */
+	public ByteBuffer get(final File file) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("File can't be null");
+		}
+		else {
+			final String	key = file.getCanonicalPath();
+			final long		length = file.length(), lastModified = file.lastModified();
+
+			synchronized (entries) {
+				final Entry	entry = entries.get(key);
+
+				if (entry != null) {
+					if (entry.length == length && entry.lastModified == lastModified) {
+						hits.incrementAndGet();
+						return entry.content.duplicate();
+					}
+					else {
+						entries.remove(key);
+						size -= entry.length;
+					}
+				}
+			}
+			misses.incrementAndGet();
+			if (length > maxEntrySize) {
+				return null;
+			}
+			else {
+				final ByteBuffer	content = load(file, (int)length);
+
+				if (content == null || file.length() != length || file.lastModified() != lastModified) {
+					return null;
+				}
+				else {
+					final Entry	entry = new Entry(length, lastModified, content.asReadOnlyBuffer());
+
+					synchronized (entries) {
+						final Entry	old = entries.put(key, entry);
+
+						if (old != null) {
+							size -= old.length;
+						}
+						size += length;
+						evict();
+					}
+					return entry.content.duplicate();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getSize() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+
+	public int getEntryCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private void evict() {
+		final Iterator<Entry>	it = entries.values().iterator();
+
+		while (size > capacity && it.hasNext()) {
+			size -= it.next().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static ByteBuffer load(final File file, final int length) throws IOException {
+		final ByteBuffer	content = ByteBuffer.allocateDirect(length);
+
+		try(final FileChannel	fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (content.hasRemaining()) {
+				if (fc.read(content) < 0) {
+					return null;
+				}
+			}
+		}
+		return content.flip();
+	}
+
+	private static class Entry {
+		private final long			length;
+		private final long			lastModified;
+		private final ByteBuffer	content;
+
+		private Entry(final long length, final long lastModified, final ByteBuffer content) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.content = content;
+		}
+	}
+}
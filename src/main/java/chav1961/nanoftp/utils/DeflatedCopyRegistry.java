@@ -0,0 +1,240 @@
+package chav1961.nanoftp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import chav1961.purelib.basic.interfaces.LoggerFacade;
+import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
+
+/**
+ * Server-wide registry of the compressed copies of files for 'MODE Z' RETR. Copy of the file is a complete zlib stream
+ * of its content, so it can be sent to the client as is by sendfile(2), without deflating the file again. Copies are
+ * built in the background when the file was downloaded in the 'MODE Z' for the given number of times, and are kept in
+ * the copies directory outside the FTP root, mirroring paths of the files (name.deflate). Every copy starts with the
+ * header containing size and modification time of the file it was built from, so copies of changed files are not used
+ * and are rebuilt by the following downloads.
+ */
+public class DeflatedCopyRegistry implements AutoCloseable {
+	public static final int		HEADER_SIZE = 3 * Long.BYTES;
+
+	private static final long	MAGIC = 0x4E46545044454631L;	// NFTPDEF1
+	private static final String	SUFFIX = ".deflate";
+	private static final int	MAX_COUNTED_FILES = 4096;
+	private static final int	BUFFER_SIZE = 64 * 1024;
+
+	private final File				root;
+	private final File				copies;
+	private final int				threshold;
+	private final ZlibPool			zlib;
+	private final LoggerFacade		logger;
+	private final boolean			debugMode;
+	private final Map<String, Integer>	downloads = new LinkedHashMap<>(16, 0.75f, true);
+	private final Set<String>		building = new HashSet<>();
+	private final ExecutorService	builder;
+
+	/**
+	 * @param root FTP root. Can't be null
+	 * @param copies directory to keep compressed copies in. Can't be null and must be outside the FTP root
+	 * @param threshold number of downloads to build compressed copy after
+	 * @param zlib pool to lease deflaters from. Can't be null
+	 * @param logger logger to report build failures. Can't be null
+	 * @param debugMode turn on debug trace
+	 * @throws IOException on any I/O errors
+	 */
+	public DeflatedCopyRegistry(final File root, final File copies, final int threshold, final ZlibPool zlib, final LoggerFacade logger, final boolean debugMode) throws IOException {
+		if (root == null) {
+			throw new NullPointerException("Root can't be null");
+		}
+		else if (copies == null || !copies.isDirectory() || !copies.canWrite()) {
+			throw new IllegalArgumentException("Copies directory ["+copies+"] is null, not a directory or not writable");
+		}
+		else if (copies.getCanonicalFile().toPath().startsWith(root.getCanonicalFile().toPath())) {
+			throw new IllegalArgumentException("Copies directory ["+copies+"] can't be inside the root ["+root+"]");
+		}
+		else if (threshold <= 0) {
+			throw new IllegalArgumentException("Downloads threshold ["+threshold+"] must be positive");
+		}
+		else if (zlib == null) {
+			throw new NullPointerException("Zlib pool can't be null");
+		}
+		else if (logger == null) {
+			throw new NullPointerException("Logger can't be null");
+		}
+		else {
+			this.root = root.getCanonicalFile();
+			this.copies = copies.getCanonicalFile();
+			this.threshold = threshold;
+			this.zlib = zlib;
+			this.logger = logger;
+			this.debugMode = debugMode;
+			this.builder = Executors.newSingleThreadExecutor((r)->{
+				final Thread	t = new Thread(r, "Deflated copy builder");
+
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Open compressed copy of the file.
+	 * @param file file to open copy for. Can't be null
+	 * @return channel of the copy (zlib stream starts at {@value #HEADER_SIZE}) or null if there is no copy or it is not fresh
+	 * @throws IOException on any I/O errors
+	 */
+	public FileChannel open(final File file) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("File can't be null");
+		}
+		else {
+			final File	copy = getCopy(file);
+
+			if (copy == null || !copy.isFile()) {
+				return null;
+			}
+			else {
+				final FileChannel	fc = FileChannel.open(copy.toPath(), StandardOpenOption.READ);
+				final ByteBuffer	header = ByteBuffer.allocate(HEADER_SIZE);
+
+				try {
+					while (header.hasRemaining() && fc.read(header, header.position()) > 0) {
+					}
+					header.flip();
+					if (header.remaining() == HEADER_SIZE && header.getLong() == MAGIC && header.getLong() == file.length() && header.getLong() == file.lastModified()) {
+						return fc;
+					}
+				} catch (IOException exc) {
+					fc.close();
+					throw exc;
+				}
+				fc.close();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Count the file download without compressed copy. Copy build is started when the number of downloads reaches the threshold.
+	 * @param file file downloaded. Can't be null
+	 * @throws IOException on any I/O errors
+	 */
+	public void downloaded(final File file) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("File can't be null");
+		}
+		else {
+			final String	key = file.getCanonicalPath();
+
+			synchronized (downloads) {
+				final int	count = downloads.getOrDefault(key, 0) + 1;
+
+				if (count < threshold) {
+					downloads.put(key, count);
+					if (downloads.size() > MAX_COUNTED_FILES) {
+						// Counters of the least recently downloaded files are dropped first
+						final Iterator<String>	it = downloads.keySet().iterator();
+
+						it.next();
+						it.remove();
+					}
+					return;
+				}
+				else {
+					downloads.remove(key);
+					if (!building.add(key)) {
+						return;
+					}
+				}
+			}
+			builder.execute(()->{
+				try {
+					build(file);
+				} catch (IOException exc) {
+					logger.message(Severity.warning, exc, "Compressed copy of ["+file+"] was not built: "+exc.getLocalizedMessage());
+				} finally {
+					synchronized (downloads) {
+						building.remove(key);
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void close() {
+		builder.shutdownNow();
+	}
+
+	private void build(final File file) throws IOException {
+		final File		copy = getCopy(file);
+		final long		length = file.length(), lastModified = file.lastModified();
+
+		if (copy == null || !file.isFile()) {
+			return;
+		}
+		else if (!copy.getParentFile().isDirectory() && !copy.getParentFile().mkdirs()) {
+			throw new IOException("Can't create directory ["+copy.getParentFile()+"]");
+		}
+		// Copy is built in the temporary file and replaces the old one atomically, so the transfers in progress are not affected
+		final File		temp = File.createTempFile(copy.getName(), ".tmp", copy.getParentFile());
+		final Deflater	deflater = zlib.acquireDeflater(Deflater.BEST_COMPRESSION);
+
+		try {
+			try(final FileChannel	from = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				final FileChannel	to = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				final ByteBuffer	buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+				buffer.putLong(MAGIC).putLong(length).putLong(lastModified).flip();
+				while (buffer.hasRemaining()) {
+					to.write(buffer);
+				}
+				buffer.clear();
+
+				final DeflaterOutputStream	os = new DeflaterOutputStream(Channels.newOutputStream(to), deflater, BUFFER_SIZE);
+
+				while (from.read(buffer) >= 0) {
+					os.write(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+				os.finish();
+				os.flush();
+			}
+			if (file.length() == length && file.lastModified() == lastModified) {
+				Files.move(temp.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				if (debugMode) {
+					logger.message(Severity.debug, "Compressed copy of ["+file+"] built, "+length+" -> "+(copy.length() - HEADER_SIZE)+" bytes");
+				}
+			}
+		} finally {
+			zlib.release(deflater);
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private File getCopy(final File file) throws IOException {
+		final File	canonical = file.getCanonicalFile();
+
+		if (!canonical.toPath().startsWith(root.toPath()) || canonical.equals(root)) {
+			return null;
+		}
+		else {
+			return new File(copies, root.toPath().relativize(canonical.toPath()).toString() + SUFFIX);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package chav1961.nanoftp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import chav1961.purelib.basic.interfaces.LoggerFacade;
+import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
+
+/**
+ * Server-wide cache of pre-formatted directory listings. Every cached directory is registered in the {@link WatchService},
+ * any change event invalidates all the listings of the directory. Listings also expire after the time-to-live, because some
+ * file systems (network ones, as a rule) don't deliver change events. To avoid caching of the listing which was changed while
+ * being built, take the stamp by {@link #prepare(File)} before the directory walk and pass it to {@link #put(File, Kind, long, byte[])}.
+ * Listings are cached encoded in the data connection charset, so the cached listing is written to the data connection as is.
+ */
+public class ListingCache implements AutoCloseable {
+	public static enum Kind {
+		LIST, MLSD
+	}
+
+	private final long					timeToLive;
+	private final int					maxDirectories;
+	private final int					maxPayloadSize;
+	private final LoggerFacade			logger;
+	private final boolean				debugMode;
+	private final Map<String, DirEntry>	entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<WatchKey, String>	watched = new HashMap<>();
+	private final WatchService			watcher;
+	private long						stamp = 0;
+
+	public ListingCache(final long timeToLive, final int maxDirectories, final int maxPayloadSize, final LoggerFacade logger, final boolean debugMode) {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException("Time to live ["+timeToLive+"] must be positive");
+		}
+		else if (maxDirectories <= 0) {
+			throw new IllegalArgumentException("Max directories ["+maxDirectories+"] must be positive");
+		}
+		else if (maxPayloadSize <= 0) {
+			throw new IllegalArgumentException("Max payload size ["+maxPayloadSize+"] must be positive");
+		}
+		else if (logger == null) {
+			throw new NullPointerException("Logger can't be null");
+		}
+		else {
+			this.timeToLive = timeToLive;
+			this.maxDirectories = maxDirectories;
+			this.maxPayloadSize = maxPayloadSize;
+			this.logger = logger;
+			this.debugMode = debugMode;
+			this.watcher = newWatchService(logger);
+			if (watcher != null) {
+				final Thread	t = new Thread(this::watch, "Listing cache watcher");
+
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * @return max size (in bytes) of the listing to cache. Larger listings are not cached
+	 */
+	public int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+
+	/**
+	 * Get cached listing.
+	 * @param dir directory to get listing for. Can't be null
+	 * @param kind listing kind. Can't be null
+	 * @return listing cached or null if missing
+	 * @throws IOException on any I/O errors
+	 */
+	public byte[] get(final File dir, final Kind kind) throws IOException {
+		if (dir == null) {
+			throw new NullPointerException("Directory can't be null");
+		}
+		else if (kind == null) {
+			throw new NullPointerException("Listing kind can't be null");
+		}
+		else {
+			final String	key = dir.getCanonicalPath();
+
+			synchronized (entries) {
+				final DirEntry	entry = entries.get(key);
+
+				if (entry == null || entry.payloads[kind.ordinal()] == null) {
+					return null;
+				}
+				else if (System.currentTimeMillis() - entry.created[kind.ordinal()] > timeToLive) {
+					entry.payloads[kind.ordinal()] = null;
+					return null;
+				}
+				else {
+					return entry.payloads[kind.ordinal()];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Register directory to watch and get the stamp to build its listing.
+	 * @param dir directory to build listing for. Can't be null
+	 * @return stamp to pass to {@link #put(File, Kind, long, byte[])}
+	 * @throws IOException on any I/O errors
+	 */
+	public long prepare(final File dir) throws IOException {
+		if (dir == null) {
+			throw new NullPointerException("Directory can't be null");
+		}
+		else {
+			final String	key = dir.getCanonicalPath();
+
+			synchronized (entries) {
+				DirEntry	entry = entries.get(key);
+
+				if (entry == null) {
+					entry = new DirEntry(register(dir, key));
+					entries.put(key, entry);
+					evict();
+				}
+				return entry.stamp;
+			}
+		}
+	}
+
+	/**
+	 * Cache listing built. Listing will not be cached if directory was changed after {@link #prepare(File)} call.
+	 * @param dir directory listing was built for. Can't be null
+	 * @param kind listing kind. Can't be null
+	 * @param stamp stamp got from {@link #prepare(File)}
+	 * @param payload encoded listing to cache. Can't be null. Content must not be changed after the call
+	 * @throws IOException on any I/O errors
+	 */
+	public void put(final File dir, final Kind kind, final long stamp, final byte[] payload) throws IOException {
+		if (dir == null) {
+			throw new NullPointerException("Directory can't be null");
+		}
+		else if (kind == null) {
+			throw new NullPointerException("Listing kind can't be null");
+		}
+		else if (payload == null) {
+			throw new NullPointerException("Payload can't be null");
+		}
+		else if (payload.length <= maxPayloadSize) {
+			final String	key = dir.getCanonicalPath();
+
+			synchronized (entries) {
+				final DirEntry	entry = entries.get(key);
+
+				if (entry != null && entry.stamp == stamp) {
+					entry.payloads[kind.ordinal()] = payload;
+					entry.created[kind.ordinal()] = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidate all the listings of the directory.
+	 * @param dir directory to invalidate listings for. Can't be null
+	 * @throws IOException on any I/O errors
+	 */
+	public void invalidate(final File dir) throws IOException {
+		if (dir == null) {
+			throw new NullPointerException("Directory can't be null");
+		}
+		else {
+			invalidate(dir.getCanonicalPath());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (watcher != null) {
+			watcher.close();
+		}
+		synchronized (entries) {
+			entries.clear();
+			watched.clear();
+		}
+	}
+
+	private void invalidate(final String key) {
+		synchronized (entries) {
+			final DirEntry	entry = entries.get(key);
+
+			if (entry != null) {
+				entry.stamp = ++stamp;
+				entry.payloads[Kind.LIST.ordinal()] = null;
+				entry.payloads[Kind.MLSD.ordinal()] = null;
+			}
+		}
+	}
+
+	private WatchKey register(final File dir, final String key) {
+		if (watcher != null) {
+			try {
+				final WatchKey	wk = dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+				watched.put(wk, key);
+				return wk;
+			} catch (IOException | UnsupportedOperationException | ClosedWatchServiceException exc) {
+				if (debugMode) {
+					logger.message(Severity.debug, "Directory [%1$s] can't be watched, time to live will be used only: %2$s", key, exc.getLocalizedMessage());
+				}
+			}
+		}
+		return null;
+	}
+
+	private void evict() {
+		final Iterator<DirEntry>	it = entries.values().iterator();
+
+		while (entries.size() > maxDirectories && it.hasNext()) {
+			final DirEntry	entry = it.next();
+
+			if (entry.key != null) {
+				entry.key.cancel();
+				watched.remove(entry.key);
+			}
+			it.remove();
+		}
+	}
+
+	private void watch() {
+		try {
+			for (;;) {
+				final WatchKey	wk = watcher.take();
+				final String	key;
+
+				wk.pollEvents();
+				synchronized (entries) {
+					key = watched.get(wk);
+				}
+				if (key != null) {
+					invalidate(key);
+					if (!wk.reset()) {
+						synchronized (entries) {
+							watched.remove(wk);
+							entries.remove(key);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException exc) {
+		}
+	}
+
+	private static WatchService newWatchService(final LoggerFacade logger) {
+		try {
+			return FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException exc) {
+			logger.message(Severity.warning, "Watch service is not available, cached listings will expire by time to live only");
+			return null;
+		}
+	}
+
+	private class DirEntry {
+		private final WatchKey	key;
+		private final byte[][]	payloads = new byte[Kind.values().length][];
+		private final long[]	created = new long[Kind.values().length];
+		private long			stamp = ++ListingCache.this.stamp;
+
+		private DirEntry(final WatchKey key) {
+			this.key = key;
+		}
+	}
+}
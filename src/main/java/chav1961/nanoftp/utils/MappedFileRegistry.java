@@ -0,0 +1,260 @@
+package chav1961.nanoftp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import chav1961.purelib.basic.interfaces.LoggerFacade;
+import chav1961.purelib.basic.interfaces.LoggerFacade.Severity;
+
+/**
+ * Server-wide registry of memory-mapped files for RETR. Every file is mapped once (in regions up to {@value #REGION_SIZE}
+ * bytes, because mapped buffer can't exceed 2 GiB) and is shared by all the sessions downloading it. Mappings are reference
+ * counted by {@link Lease} objects. Mappings which are not leased for the idle timeout, as well as mappings of changed
+ * files, are unmapped immediately instead of waiting for GC, so the page cache carries all the buffering.
+ */
+public class MappedFileRegistry implements AutoCloseable {
+	public static final long	REGION_SIZE = 1L << 30;
+
+	private static final Object	UNSAFE;
+	private static final Method	INVOKE_CLEANER;
+
+	static {
+		Object	unsafe = null;
+		Method	invokeCleaner = null;
+
+		// sun.misc.Unsafe.invokeCleaner() is the only way to unmap buffer explicitly. If it is not accessible, unmapping will be made by GC
+		try {
+			final Class<?>	unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field		field = unsafeClass.getDeclaredField("theUnsafe");
+
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException exc) {
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final long						idleTimeout;
+	private final LoggerFacade				logger;
+	private final boolean					debugMode;
+	private final Map<String, MappedFile>	files = new HashMap<>();
+	private final ScheduledExecutorService	reaper;
+
+	public MappedFileRegistry(final long idleTimeout, final LoggerFacade logger, final boolean debugMode) {
+		if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout ["+idleTimeout+"] must be positive");
+		}
+		else if (logger == null) {
+			throw new NullPointerException("Logger can't be null");
+		}
+		else {
+			this.idleTimeout = idleTimeout;
+			this.logger = logger;
+			this.debugMode = debugMode;
+			this.reaper = Executors.newSingleThreadScheduledExecutor((r)->{
+				final Thread	t = new Thread(r, "Mapped file reaper");
+
+				t.setDaemon(true);
+				return t;
+			});
+			this.reaper.scheduleWithFixedDelay(this::reap, idleTimeout, Math.max(idleTimeout / 2, 1), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Lease mapped content of the file. Lease must be closed after use.
+	 * @param file file to map. Can't be null
+	 * @return lease of the mapped content
+	 * @throws IOException on any I/O errors
+	 */
+	public Lease acquire(final File file) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("File can't be null");
+		}
+		else {
+			final String	key = file.getCanonicalPath();
+			final long		length = file.length(), lastModified = file.lastModified();
+
+			synchronized (files) {
+				final MappedFile	mf = files.get(key);
+
+				if (mf != null) {
+					if (mf.length == length && mf.lastModified == lastModified) {
+						mf.refCount++;
+						return new Lease(mf);
+					}
+					else {
+						files.remove(key);
+						mf.stale = true;
+						if (mf.refCount == 0) {
+							unmap(mf);
+						}
+					}
+				}
+			}
+			final MappedFile	mapped = map(file, length, lastModified);
+
+			synchronized (files) {
+				final MappedFile	old = files.put(key, mapped);
+
+				if (old != null) {
+					old.stale = true;
+					if (old.refCount == 0) {
+						unmap(old);
+					}
+				}
+				mapped.refCount++;
+				return new Lease(mapped);
+			}
+		}
+	}
+
+	public int getMappedCount() {
+		synchronized (files) {
+			return files.size();
+		}
+	}
+
+	@Override
+	public void close() {
+		reaper.shutdownNow();
+		synchronized (files) {
+			for (MappedFile mf : files.values()) {
+				mf.stale = true;
+				if (mf.refCount == 0) {
+					unmap(mf);
+				}
+			}
+			files.clear();
+		}
+	}
+
+	private void reap() {
+		final long	now = System.currentTimeMillis();
+
+		synchronized (files) {
+			final Iterator<MappedFile>	it = files.values().iterator();
+
+			while (it.hasNext()) {
+				final MappedFile	mf = it.next();
+
+				if (mf.refCount == 0 && now - mf.lastUsed >= idleTimeout) {
+					it.remove();
+					unmap(mf);
+				}
+			}
+		}
+	}
+
+	private void release(final MappedFile mf) {
+		synchronized (files) {
+			if (--mf.refCount == 0) {
+				mf.lastUsed = System.currentTimeMillis();
+				if (mf.stale) {
+					unmap(mf);
+				}
+			}
+		}
+	}
+
+	private void unmap(final MappedFile mf) {
+		if (INVOKE_CLEANER != null) {
+			for (MappedByteBuffer region : mf.regions) {
+				try {
+					INVOKE_CLEANER.invoke(UNSAFE, region);
+				} catch (ReflectiveOperationException exc) {
+					if (debugMode) {
+						logger.message(Severity.debug, exc, "Unmapping failed");
+					}
+				}
+			}
+		}
+		mf.regions = new MappedByteBuffer[0];
+	}
+
+	private static MappedFile map(final File file, final long length, final long lastModified) throws IOException {
+		final MappedByteBuffer[]	regions = new MappedByteBuffer[(int)Math.max(1, (length + REGION_SIZE - 1) / REGION_SIZE)];
+
+		try(final FileChannel	fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (int index = 0; index < regions.length; index++) {
+				final long	start = index * REGION_SIZE;
+
+				regions[index] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+			}
+		}
+		return new MappedFile(length, lastModified, regions);
+	}
+
+	private static class MappedFile {
+		private final long			length;
+		private final long			lastModified;
+		private MappedByteBuffer[]	regions;
+		private int					refCount = 0;
+		private long				lastUsed = System.currentTimeMillis();
+		private boolean				stale = false;
+
+		private MappedFile(final long length, final long lastModified, final MappedByteBuffer[] regions) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.regions = regions;
+		}
+	}
+
+	/**
+	 * Lease of the mapped file content. Buffers got from the lease can't be used after lease closing.
+	 */
+	public class Lease implements AutoCloseable {
+		private final MappedFile	mf;
+		private boolean				closed = false;
+
+		private Lease(final MappedFile mf) {
+			this.mf = mf;
+		}
+
+		public long getLength() {
+			return mf.length;
+		}
+
+		public int getRegionCount() {
+			return mf.regions.length;
+		}
+
+		/**
+		 * Get region of the mapped file. Region with index N starts at the N * {@value MappedFileRegistry#REGION_SIZE} file offset.
+		 * @param index region index
+		 * @return read-only buffer with region content
+		 */
+		public ByteBuffer getRegion(final int index) {
+			if (closed) {
+				throw new IllegalStateException("Lease is closed");
+			}
+			else {
+				return mf.regions[index].asReadOnlyBuffer();
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(mf);
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package chav1961.nanoftp.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Server-wide pool of reusable zlib deflaters and inflaters for the 'MODE Z' transfers. Every instance holds native
+ * zlib state, which is allocated on creation and is freed by {@code end()} only, so instances are reset and reused by
+ * the following transfers instead of being created per transfer. Every acquired instance must be returned by
+ * {@link #release(Deflater)} or {@link #release(Inflater)}, instances which are not fit into the pool are ended.
+ */
+public class ZlibPool implements AutoCloseable {
+	private final ArrayBlockingQueue<Deflater>	deflaters;
+	private final ArrayBlockingQueue<Inflater>	inflaters;
+
+	public ZlibPool(final int maxPooled) {
+		if (maxPooled <= 0) {
+			throw new IllegalArgumentException("Max pooled instances ["+maxPooled+"] must be positive");
+		}
+		else {
+			this.deflaters = new ArrayBlockingQueue<>(maxPooled);
+			this.inflaters = new ArrayBlockingQueue<>(maxPooled);
+		}
+	}
+
+	/**
+	 * Acquire deflater producing zlib format.
+	 * @param level compression level (0..9 or {@link Deflater#DEFAULT_COMPRESSION})
+	 * @return deflater acquired. Can't be null
+	 */
+	public Deflater acquireDeflater(final int level) {
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level ["+level+"] out of range "+Deflater.NO_COMPRESSION+".."+Deflater.BEST_COMPRESSION);
+		}
+		else {
+			final Deflater	result = deflaters.poll();
+
+			if (result == null) {
+				return new Deflater(level);
+			}
+			else {
+				result.setLevel(level);
+				return result;
+			}
+		}
+	}
+
+	public Inflater acquireInflater() {
+		final Inflater	result = inflaters.poll();
+
+		return result == null ? new Inflater() : result;
+	}
+
+	public void release(final Deflater deflater) {
+		if (deflater == null) {
+			throw new NullPointerException("Deflater to release can't be null");
+		}
+		else {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	public void release(final Inflater inflater) {
+		if (inflater == null) {
+			throw new NullPointerException("Inflater to release can't be null");
+		}
+		else {
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		Deflater	deflater;
+		Inflater	inflater;
+
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+	}
+}
@@ -2,6 +2,7 @@ module chav1961.nanoftp {
 	requires transitive chav1961.purelib;
 	requires java.management;
 	requires jdk.attach;
+	requires jdk.unsupported;
 	
 	exports chav1961.nanoftp; 
 }
@@ -0,0 +1,196 @@
+package chav1961.nanoftp.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ControlLineReaderTest {
+	private static final int	MAX_LINE_LENGTH = 32;
+
+	@Test
+	public void splitTerminatorTest() throws IOException {
+		final ControlLineReader	rdr = new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII);
+		final InputStream		is = new ChunkedInputStream("RETR /a.txt\r", "\nST", "OR  /b.txt \r", "\n");
+
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.RETR, rdr.getCommand());
+		Assert.assertEquals("/a.txt", rdr.getArguments());
+		Assert.assertEquals("RETR /a.txt", rdr.getLine());
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.STOR, rdr.getCommand());
+		Assert.assertEquals("/b.txt", rdr.getArguments());
+		Assert.assertEquals("STOR  /b.txt ", rdr.getLine());
+		Assert.assertFalse(rdr.readLine(is));
+	}
+
+	@Test
+	public void bareLineFeedTest() throws IOException {
+		final ControlLineReader	rdr = new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII);
+		final InputStream		is = new ChunkedInputStream("noop\nsyst\r\n", "\n", "cwd /\r\r\n");
+
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.NOOP, rdr.getCommand());
+		Assert.assertEquals("", rdr.getArguments());
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.SYST, rdr.getCommand());
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertNull(rdr.getCommand());
+		Assert.assertEquals("", rdr.getLine());
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.CWD, rdr.getCommand());
+		// Only the CR immediately preceding the LF is a part of the terminator
+		Assert.assertEquals("cwd /\r", rdr.getLine());
+		Assert.assertEquals("/", rdr.getArguments());
+		Assert.assertFalse(rdr.readLine(is));
+	}
+
+	@Test
+	public void lineLengthTest() throws IOException {
+		final String	longest = line(MAX_LINE_LENGTH), tooLong = line(MAX_LINE_LENGTH + 1);
+
+		// Longest line is accepted in one read and split across reads
+		for (String[] chunks : new String[][] {{longest + "\r\n"}, {longest, "\r", "\n"}, {longest + "\r", "\n"}}) {
+			final ControlLineReader	rdr = new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII);
+			final InputStream		is = new ChunkedInputStream(chunks);
+
+			Assert.assertTrue(rdr.readLine(is));
+			Assert.assertEquals(Commands.SITE, rdr.getCommand());
+			Assert.assertEquals(longest, rdr.getLine());
+			Assert.assertEquals(longest.substring(5), rdr.getArguments());
+			Assert.assertFalse(rdr.readLine(is));
+		}
+
+		// Longest line following the other one is accepted too, so the buffer is compacted
+		final ControlLineReader	rdr = new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII);
+		final InputStream		is = new ChunkedInputStream("NOOP\r\n" + longest.substring(0, 10), longest.substring(10) + "\r\n");
+
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(Commands.NOOP, rdr.getCommand());
+		Assert.assertTrue(rdr.readLine(is));
+		Assert.assertEquals(longest, rdr.getLine());
+
+		for (String[] chunks : new String[][] {{tooLong + "\r\n"}, {tooLong, "\r\n"}}) {
+			try{new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII).readLine(new ChunkedInputStream(chunks));
+				Assert.fail("Mandatory exception was not detected (line is too long)");
+			} catch (IOException exc) {
+			}
+		}
+	}
+
+	@Test
+	public void channelTest() throws IOException {
+		final ControlLineReader		rdr = new ControlLineReader(MAX_LINE_LENGTH, StandardCharsets.US_ASCII);
+		final ReadableByteChannel	rbc = new ChunkedChannel("USER", " anonymous\r", "\nPASS x\r\nQUIT\n", line(MAX_LINE_LENGTH + 1), "\r\n");
+
+		Assert.assertEquals(4, rdr.read(rbc));
+		Assert.assertFalse(rdr.nextLine());
+		Assert.assertEquals(11, rdr.read(rbc));
+		Assert.assertFalse(rdr.nextLine());
+		Assert.assertEquals(14, rdr.read(rbc));
+		Assert.assertTrue(rdr.nextLine());
+		Assert.assertEquals(Commands.USER, rdr.getCommand());
+		Assert.assertEquals("anonymous", rdr.getArguments());
+		Assert.assertTrue(rdr.nextLine());
+		Assert.assertEquals(Commands.PASS, rdr.getCommand());
+		Assert.assertTrue(rdr.nextLine());
+		Assert.assertEquals(Commands.QUIT, rdr.getCommand());
+		Assert.assertFalse(rdr.nextLine());
+		Assert.assertFalse(rdr.isOverflow());
+
+		Assert.assertEquals(MAX_LINE_LENGTH + 1, rdr.read(rbc));
+		Assert.assertFalse(rdr.nextLine());
+		Assert.assertFalse(rdr.isOverflow());
+		// Only the CR fits into the buffer, so the line can't be completed
+		Assert.assertEquals(1, rdr.read(rbc));
+		Assert.assertFalse(rdr.nextLine());
+		Assert.assertTrue(rdr.isOverflow());
+	}
+
+	@Test
+	public void illegalArgumentsTest() {
+		try{new ControlLineReader(0, StandardCharsets.US_ASCII);
+			Assert.fail("Mandatory exception was not detected (non-positive 1-st argument)");
+		} catch (IllegalArgumentException exc) {
+		}
+		try{new ControlLineReader(MAX_LINE_LENGTH, null);
+			Assert.fail("Mandatory exception was not detected (null 2-nd argument)");
+		} catch (NullPointerException exc) {
+		}
+	}
+
+	private static String line(final int length) {
+		final char[]	content = new char[length];
+
+		Arrays.fill(content, 'x');
+		"SITE ".getChars(0, 5, content, 0);
+		return new String(content);
+	}
+
+	private static class ChunkedInputStream extends InputStream {
+		private final String[]	chunks;
+		private int				current = 0;
+
+		ChunkedInputStream(final String... chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		public int read() throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (current >= chunks.length) {
+				return -1;
+			}
+			else {
+				// Every read returns one chunk at most, so chunk bounds are the bounds of the network packets
+				final byte[]	content = chunks[current].getBytes(StandardCharsets.US_ASCII);
+				final int		size = Math.min(len, content.length);
+
+				System.arraycopy(content, 0, b, off, size);
+				if (size == content.length) {
+					current++;
+				}
+				else {
+					chunks[current] = chunks[current].substring(size);
+				}
+				return size;
+			}
+		}
+	}
+
+	private static class ChunkedChannel implements ReadableByteChannel {
+		private final ChunkedInputStream	is;
+
+		ChunkedChannel(final String... chunks) {
+			this.is = new ChunkedInputStream(chunks);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		@Override
+		public int read(final ByteBuffer dst) throws IOException {
+			final int	count = is.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+			if (count > 0) {
+				dst.position(dst.position() + count);
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package chav1961.nanoftp.internal;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FTPCommandsTest {
+	private static final String	VERB_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+	@Test
+	public void lookupTest() {
+		for (Commands item : Commands.values()) {
+			final String	upper = item.name(), lower = upper.toLowerCase();
+			final String	mixed = lower.substring(0, 1) + upper.substring(1);
+			final String	line = "  " + lower + " args";
+
+			Assert.assertEquals(item, Commands.lookup(upper));
+			Assert.assertEquals(item, Commands.lookup(lower));
+			Assert.assertEquals(item, Commands.lookup(mixed));
+			Assert.assertEquals(item, Commands.lookup(line, 2, 2 + lower.length()));
+			Assert.assertEquals(item, Commands.lookup(upper.getBytes(StandardCharsets.US_ASCII), 0, upper.length()));
+			Assert.assertEquals(item, Commands.lookup(line.getBytes(StandardCharsets.US_ASCII), 2, 2 + lower.length()));
+		}
+
+		for (String item : new String[] {"", "X", "GET", "LS", "RET", "RETRX", "STORE", "USER ", " USER", "U$ER", "R3TR", "1234", "\u0420\u0415\u0422\u0420"}) {
+			Assert.assertNull(item, Commands.lookup(item));
+			Assert.assertNull(item, Commands.lookup(item.getBytes(StandardCharsets.UTF_8), 0, item.getBytes(StandardCharsets.UTF_8).length));
+		}
+		Assert.assertNull(Commands.lookup("RETR", 0, 3));
+		Assert.assertNull(Commands.lookup("RETR", 2, 2));
+		Assert.assertNull(Commands.lookup("RETR".getBytes(StandardCharsets.US_ASCII), 1, 4));
+
+		// Every verb of 1..4 chars is looked up, so hash slots of the non-verbs can't be taken by mistake
+		final char[]	verb = new char[4];
+		int				found = 0;
+
+		for (int length = 1; length <= verb.length; length++) {
+			found += countVerbs(verb, 0, length);
+		}
+		Assert.assertEquals(Commands.values().length, found);
+	}
+
+	@Test
+	public void parseNumberTest() {
+		Assert.assertEquals(0, CommandArgs.parseNumber("0", 1));
+		Assert.assertEquals(9, CommandArgs.parseNumber("9", 1));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("10", 1));
+		Assert.assertEquals(999999999999999999L, CommandArgs.parseNumber("999999999999999999", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("1000000000000000000", 18));
+		Assert.assertEquals(7, CommandArgs.parseNumber("0000007", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("-1", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("+1", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("12a", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber(" 12", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("1/", 18));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("1:", 18));
+
+		Assert.assertEquals(345, CommandArgs.parseNumber("12345", 2, 5, 3));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("12345", 1, 5, 3));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("12345", 3, 3, 3));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseNumber("12345", 4, 3, 3));
+	}
+
+	@Test
+	public void parseHostPortTest() {
+		final int[]	target = new int[6];
+
+		Assert.assertTrue(CommandArgs.parseHostPort("127,0,0,1,4,1", target));
+		Assert.assertArrayEquals(new int[] {127, 0, 0, 1, 4, 1}, target);
+		Assert.assertTrue(CommandArgs.parseHostPort("0,0,0,0,0,0", target));
+		Assert.assertArrayEquals(new int[] {0, 0, 0, 0, 0, 0}, target);
+		Assert.assertTrue(CommandArgs.parseHostPort("255,255,255,255,255,255", target));
+		Assert.assertArrayEquals(new int[] {255, 255, 255, 255, 255, 255}, target);
+		Assert.assertTrue(CommandArgs.parseHostPort(" 10 , 1,2 ,3,\t4,5 ", target));
+		Assert.assertArrayEquals(new int[] {10, 1, 2, 3, 4, 5}, target);
+
+		Assert.assertFalse(CommandArgs.parseHostPort("", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("256,0,0,1,4,1", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4,256", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4,1000", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4,1,", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4,1,2", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,,1,4,1", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0,1,4,-1", target));
+		Assert.assertFalse(CommandArgs.parseHostPort("127,0,0 0,1,4,1", target));
+	}
+
+	@Test
+	public void parseDeflateLevelTest() {
+		Assert.assertEquals(0, CommandArgs.parseDeflateLevel("Z LEVEL 0"));
+		Assert.assertEquals(9, CommandArgs.parseDeflateLevel("Z LEVEL 9"));
+		Assert.assertEquals(6, CommandArgs.parseDeflateLevel("z level 6"));
+		Assert.assertEquals(6, CommandArgs.parseDeflateLevel("z Level  \t6"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVEL 10"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVEL -1"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVEL"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVEL "));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVELS 5"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z LEVE 5"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("ZLEVEL 5"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("X LEVEL 5"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("ZZ LEVEL 5"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("Z"));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel(""));
+
+		Assert.assertEquals(3, CommandArgs.parseDeflateLevel("MODE Z LEVEL 3", 5, 14));
+		Assert.assertEquals(CommandArgs.NOT_A_NUMBER, CommandArgs.parseDeflateLevel("MODE Z LEVEL 3", 5, 12));
+	}
+
+	@Test
+	public void parseOptionTest() {
+		Assert.assertEquals('B', CommandArgs.parseOption("B", "SBCZ"));
+		Assert.assertEquals('B', CommandArgs.parseOption("b", "SBCZ"));
+		Assert.assertEquals('Z', CommandArgs.parseOption("MODE z", 5, 6, "SBCZ"));
+		Assert.assertEquals(0, CommandArgs.parseOption("X", "SBCZ"));
+		Assert.assertEquals(0, CommandArgs.parseOption("BB", "SBCZ"));
+		Assert.assertEquals(0, CommandArgs.parseOption("", "SBCZ"));
+		Assert.assertEquals(0, CommandArgs.parseOption(null, "SBCZ"));
+		Assert.assertEquals(0, CommandArgs.parseOption("MODE z", 4, 6, "SBCZ"));
+	}
+
+	private static int countVerbs(final char[] verb, final int index, final int length) {
+		if (index == length) {
+			final Commands	cmd = Commands.lookup(new String(verb, 0, length));
+
+			if (cmd != null) {
+				Assert.assertEquals(cmd.name(), new String(verb, 0, length));
+				return 1;
+			}
+			else {
+				return 0;
+			}
+		}
+		else {
+			int	count = 0;
+
+			for (int c = 0; c < VERB_CHARS.length(); c++) {
+				verb[index] = VERB_CHARS.charAt(c);
+				count += countVerbs(verb, index + 1, length);
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package chav1961.nanoftp.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ListingFormatterTest {
+	private static final String[]	ZONES = {"UTC", "Europe/Berlin", "America/St_Johns", "Asia/Kolkata", "Pacific/Chatham", "America/Los_Angeles"};
+	private static final DateTimeFormatter	TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+	private static final DateTimeFormatter	LIST_DATE = DateTimeFormatter.ofPattern("MMM pppd HH:mm", Locale.ENGLISH);
+
+	@Test
+	public void formatTimestampTest() {
+		final TimeZone	current = TimeZone.getDefault();
+
+		try {
+			for (String name : ZONES) {
+				// Formatter takes the time zone on creation
+				TimeZone.setDefault(TimeZone.getTimeZone(name));
+
+				final ZoneId			zone = ZoneId.of(name);
+				final ListingFormatter	formatter = new ListingFormatter();
+				final StringBuilder		sb = new StringBuilder();
+
+				for (long millis : instants(zone)) {
+					final String	expected = TIMESTAMP.format(Instant.ofEpochMilli(millis).atZone(zone));
+
+					Assert.assertEquals(name+" at "+millis, expected, formatter.formatTimestamp(millis).toString());
+					sb.setLength(0);
+					formatter.appendTimestamp(sb.append('>'), millis);
+					Assert.assertEquals(name+" at "+millis, '>' + expected, sb.toString());
+				}
+			}
+		} finally {
+			TimeZone.setDefault(current);
+		}
+	}
+
+	@Test
+	public void formatListTest() throws IOException {
+		final TimeZone	current = TimeZone.getDefault();
+		final File		file = File.createTempFile("listing", ".txt");
+
+		try {
+			final PrincipalNameCache	names = new PrincipalNameCache(16, 60_000, true);
+
+			for (String name : ZONES) {
+				TimeZone.setDefault(TimeZone.getTimeZone(name));
+
+				final ZoneId			zone = ZoneId.of(name);
+				final ListingFormatter	formatter = new ListingFormatter();
+
+				for (long millis : instants(zone)) {
+					// File times are kept in seconds by some file systems
+					if (millis >= 0 && file.setLastModified(millis / 1000 * 1000)) {
+						final FileMetadata	meta = FileMetadata.of(file, names);
+						final String		line = formatter.formatList(meta).toString();
+						final String		expected = ' ' + LIST_DATE.format(Instant.ofEpochMilli(meta.getLastModified()).atZone(zone)) + ' ' + file.getName();
+
+						Assert.assertTrue(name+": ["+line+"] doesn't end with ["+expected+"]", line.endsWith(expected));
+						Assert.assertTrue(line, line.startsWith("-rw"));
+					}
+				}
+			}
+		} finally {
+			TimeZone.setDefault(current);
+			file.delete();
+		}
+	}
+
+	private static long[] instants(final ZoneId zone) {
+		final List<Long>	result = new ArrayList<>();
+		final Random		rnd = new Random(zone.hashCode());
+
+		for (int year : new int[] {1970, 1972, 1999, 2000, 2023, 2024, 2038, 2099, 2100}) {
+			// Bounds of the year and of the February (leap years included), in the both directions
+			for (LocalDateTime item : new LocalDateTime[] {
+											LocalDateTime.of(year, 1, 1, 0, 0, 0),
+											LocalDateTime.of(year, 2, 28, 23, 59, 59),
+											LocalDateTime.of(year, 3, 1, 0, 0, 0),
+											LocalDateTime.of(year, 12, 31, 0, 0, 0),
+											LocalDateTime.of(year, 12, 31, 12, 30, 30),
+											LocalDateTime.of(year, 12, 31, 23, 59, 59)}) {
+				result.add(ZonedDateTime.of(item, zone).toInstant().toEpochMilli());
+			}
+			if (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) {
+				result.add(ZonedDateTime.of(LocalDateTime.of(year, 2, 29, 0, 0, 0), zone).toInstant().toEpochMilli());
+				result.add(ZonedDateTime.of(LocalDateTime.of(year, 2, 29, 23, 59, 59), zone).toInstant().toEpochMilli() + 999);
+			}
+		}
+		// Epoch bounds, both sides of the DST switches and the random times (with days cached by the formatter)
+		result.add(0L);
+		result.add(-1L);
+		result.add(-86_400_001L);
+		for (long millis : new long[] {Instant.parse("2024-03-31T00:59:59Z").toEpochMilli(), Instant.parse("2024-03-10T09:59:59Z").toEpochMilli(),
+										Instant.parse("2024-10-27T00:59:59Z").toEpochMilli(), Instant.parse("2024-11-03T08:59:59Z").toEpochMilli()}) {
+			result.add(millis);
+			result.add(millis + 1000);
+		}
+		for (int index = 0; index < 2000; index++) {
+			final long	millis = (long)(rnd.nextDouble() * 4_102_444_800_000L);
+
+			result.add(millis);
+			result.add(millis + rnd.nextInt(3_600_000));
+		}
+
+		final long[]	array = new long[result.size()];
+
+		for (int index = 0; index < array.length; index++) {
+			array[index] = result.get(index);
+		}
+		return array;
+	}
+}
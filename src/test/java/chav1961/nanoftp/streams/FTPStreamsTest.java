@@ -4,13 +4,24 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.net.URI;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import chav1961.nanoftp.utils.BufferPool;
+import chav1961.purelib.basic.interfaces.LoggerFacade;
+
 public class FTPStreamsTest {
 	private static final String[]	RECORDS = {"first","second","third","escape\0377escape"};
 
@@ -46,4 +57,355 @@ public class FTPStreamsTest {
 			}
 		}
 	}
+
+	@Test
+	public void recordStreamBulkTest() throws IOException {
+		final Random		rnd = new Random(1);
+		final byte[]		alphabet = "abc \r\n\377".getBytes("ISO-8859-1");
+		final byte[]		content = new byte[200000];
+		
+		for (int index = 0; index < content.length; index++) {
+			content[index] = alphabet[rnd.nextInt(alphabet.length)];
+		}
+		final String		expected = new String(content, "ISO-8859-1").replace("\r\n", "\n").replace("\n", System.lineSeparator());
+		
+		for (boolean framed : new boolean[] {false, true}) {
+			try(final ByteArrayOutputStream		baos = new ByteArrayOutputStream()) {
+				try(final RecordOutputStream	ros = new RecordOutputStream(framed ? new BlockOutputStream(baos) : baos)) {
+					for (int displ = 0; displ < content.length; ) {
+						final int	length = Math.min(rnd.nextInt(3000), content.length - displ);
+						
+						ros.write(content, displ, length);
+						displ += length;
+					}
+				}
+				
+				try(final ByteArrayInputStream	bais = new ByteArrayInputStream(baos.toByteArray());
+					final InputStream			is = framed ? new BlockInputStream(bais) : new RecordInputStream(bais);
+					final ByteArrayOutputStream	result = new ByteArrayOutputStream()) {
+					final byte[]				buffer = new byte[5000];
+					int							count;
+					
+					while ((count = is.read(buffer, 0, 1 + rnd.nextInt(buffer.length))) > 0) {
+						result.write(buffer, 0, count);
+					}
+					Assert.assertEquals(expected, new String(result.toByteArray(), "ISO-8859-1"));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void asciiCodecTest() {
+		final Random	rnd = new Random(1);
+		final byte[]	alphabet = "abc \r\n".getBytes();
+		
+		for (int pass = 0; pass < 200; pass++) {
+			final byte[]	content = new byte[rnd.nextInt(300)];
+			
+			for (int index = 0; index < content.length; index++) {
+				content[index] = alphabet[rnd.nextInt(alphabet.length)];
+			}
+			String			local = new String(content);
+			
+			while (local.contains("\r\n")) {
+				local = local.replace("\r\n", "\n");
+			}
+			final String	network = local.replaceAll("(?<!\r)\n", "\r\n");
+			final int		chunk = 1 + rnd.nextInt(20);
+			
+			Assert.assertEquals(network, translate(new AsciiCodec(true), local.getBytes(), chunk));
+			Assert.assertEquals(local, translate(new AsciiCodec(false), network.getBytes(), chunk));
+		}
+	}
+
+	@Test
+	public void blockStreamTest() throws IOException {
+		final Random	rnd = new Random(1);
+		final byte[]	content = new byte[3 * BlockOutputStream.MAX_BLOCK_SIZE + 12345];
+		
+		rnd.nextBytes(content);
+		try(final ByteArrayOutputStream		baos = new ByteArrayOutputStream()) {
+			try(final BlockOutputStream		bos = new BlockOutputStream(baos)) {
+				bos.write(content, 0, 100);
+				bos.writeRestartMarker("100".getBytes());
+				bos.write(content, 100, content.length - 100);
+			}
+			// Full blocks, restart marker block and the last block with EOF descriptor
+			Assert.assertEquals(content.length + 6 * 3 + 3, baos.size());
+			Assert.assertEquals(0x40, baos.toByteArray()[baos.size() - 12245 - 3] & 0xFF);
+
+			try{new BlockOutputStream(null).close();
+				Assert.fail("Mandatory exception was not detected (null 1-st argument)");
+			} catch (NullPointerException exc) {
+			}
+			
+			try(final ByteArrayInputStream	bais = new ByteArrayInputStream(baos.toByteArray());
+				final BlockInputStream		bis = new BlockInputStream(bais)) {
+				final byte[]				result = new byte[content.length];
+				int							displ = 0, markers = 0, count;
+				
+				for (;;) {
+					try {
+						if ((count = bis.read(result, displ, Math.min(1 + rnd.nextInt(100000), result.length - displ))) <= 0) {
+							break;
+						}
+						displ += count;
+					} catch (RestartMarkerDetectedException exc) {
+						Assert.assertEquals(100, displ);
+						Assert.assertEquals("100", new String(exc.getRestartMarker()));
+						markers++;
+					}
+				}
+				Assert.assertEquals(1, markers);
+				Assert.assertEquals(content.length, displ);
+				Assert.assertArrayEquals(content, result);
+				Assert.assertEquals(-1, bis.read());
+			}
+
+			try{new BlockInputStream(null).close();
+				Assert.fail("Mandatory exception was not detected (null 1-st argument)");
+			} catch (NullPointerException exc) {
+			}
+		}
+		
+		try(final ByteArrayOutputStream		baos = new ByteArrayOutputStream()) {
+			try(final BlockOutputStream		bos = new BlockOutputStream(baos)) {
+				for (String item : RECORDS) {
+					bos.write(item.getBytes());
+					bos.writeEndOfRecord();
+				}
+			}
+			
+			try(final ByteArrayInputStream	bais = new ByteArrayInputStream(baos.toByteArray());
+				final BlockInputStream		bis = new BlockInputStream(bais);
+				final Reader				rdr = new InputStreamReader(bis);
+				final BufferedReader		brdr = new BufferedReader(rdr)) {
+				
+				for (String item : RECORDS) {
+					Assert.assertEquals(item, brdr.readLine());
+				}
+				Assert.assertNull(brdr.readLine());
+			}
+		}
+	}
+
+	@Test
+	public void compressedStreamTest() throws IOException {
+		final Random	rnd = new Random(1);
+		final byte[]	content = new byte[1000000];
+		
+		// Zero-padded content with replicated and random spans
+		for (int index = 0; index < content.length; ) {
+			final int	length = Math.min(1 + rnd.nextInt(300), content.length - index);
+			
+			switch (rnd.nextInt(3)) {
+				case 0 : 
+					index += length;
+					break;
+				case 1 :
+					Arrays.fill(content, index, index + length, (byte)rnd.nextInt(256));
+					index += length;
+					break;
+				default :
+					while (index < content.length && rnd.nextInt(100) != 0) {
+						content[index++] = (byte)rnd.nextInt(256);
+					}
+					break;
+			}
+		}
+		try(final ByteArrayOutputStream		baos = new ByteArrayOutputStream()) {
+			try(final CompressedOutputStream	cos = new CompressedOutputStream(baos, (byte)0)) {
+				for (int displ = 0; displ < content.length; ) {
+					final int	length = Math.min(rnd.nextInt(5000), content.length - displ);
+					
+					if (displ < 500000 && displ + length >= 500000) {
+						cos.write(content, displ, 500000 - displ);
+						cos.writeRestartMarker("500000".getBytes());
+						cos.write(content, 500000, displ + length - 500000);
+					}
+					else {
+						cos.write(content, displ, length);
+					}
+					displ += length;
+				}
+			}
+			Assert.assertTrue(baos.size() < content.length);
+			
+			try{new CompressedOutputStream(null, (byte)0).close();
+				Assert.fail("Mandatory exception was not detected (null 1-st argument)");
+			} catch (NullPointerException exc) {
+			}
+			
+			try(final ByteArrayInputStream	bais = new ByteArrayInputStream(baos.toByteArray());
+				final CompressedInputStream	cis = new CompressedInputStream(bais, (byte)0)) {
+				final byte[]				result = new byte[content.length];
+				int							displ = 0, markers = 0, count;
+				
+				for (;;) {
+					try {
+						if ((count = cis.read(result, displ, Math.min(1 + rnd.nextInt(10000), result.length - displ))) <= 0) {
+							break;
+						}
+						displ += count;
+					} catch (RestartMarkerDetectedException exc) {
+						Assert.assertEquals(500000, displ);
+						Assert.assertEquals("500000", new String(exc.getRestartMarker()));
+						markers++;
+					}
+				}
+				Assert.assertEquals(1, markers);
+				Assert.assertEquals(content.length, displ);
+				Assert.assertArrayEquals(content, result);
+				Assert.assertEquals(-1, cis.read());
+			}
+
+			try{new CompressedInputStream(null, (byte)0).close();
+				Assert.fail("Mandatory exception was not detected (null 1-st argument)");
+			} catch (NullPointerException exc) {
+			}
+		}
+		
+		try(final ByteArrayOutputStream		baos = new ByteArrayOutputStream()) {
+			try(final CompressedOutputStream	cos = new CompressedOutputStream(baos, (byte)' ')) {
+				for (String item : RECORDS) {
+					cos.write(item.getBytes());
+					cos.writeEndOfRecord();
+				}
+			}
+			
+			try(final ByteArrayInputStream	bais = new ByteArrayInputStream(baos.toByteArray());
+				final CompressedInputStream	cis = new CompressedInputStream(bais, (byte)' ');
+				final Reader				rdr = new InputStreamReader(cis);
+				final BufferedReader		brdr = new BufferedReader(rdr)) {
+				
+				for (String item : RECORDS) {
+					Assert.assertEquals(item, brdr.readLine());
+				}
+				Assert.assertNull(brdr.readLine());
+			}
+		}
+	}
+
+	@Test
+	public void pooledStreamsTest() throws IOException {
+		final Random	rnd = new Random(2);
+		final byte[]	content = new byte[300000];
+		
+		for (int index = 0; index < content.length; index++) {
+			content[index] = (byte)(rnd.nextInt(10) == 0 ? '\n' : 'a' + rnd.nextInt(26));
+		}
+		
+		try(final BufferPool	pool = new BufferPool(4, LoggerFacade.Factory.newInstance(URI.create(LoggerFacade.LOGGER_SCHEME+":err:/")), true)) {
+			final Deflater		deflater = new Deflater();
+			final Inflater		inflater = new Inflater();
+			
+			try(final ByteArrayOutputStream	baos = new ByteArrayOutputStream()) {
+				// Every pooled encoder and decoder is stacked here, so the buffers are checked for leaks all at once
+				final ZlibOutputStream	zos = new ZlibOutputStream(baos, deflater, pool);
+				
+				try(final RecordOutputStream	ros = new RecordOutputStream(new BlockOutputStream(zos, pool), pool)) {
+					ros.write(content);
+				}
+				zos.close();
+				Assert.assertEquals(0, pool.getLeasedCount());
+				
+				final ZlibInputStream	zis = new ZlibInputStream(new ByteArrayInputStream(baos.toByteArray()), inflater, pool);
+				
+				try(final BlockInputStream	bis = new BlockInputStream(zis)) {
+					final byte[]	result = new byte[content.length];
+					int				displ = 0, count;
+					
+					while ((count = bis.read(result, displ, Math.min(1 + rnd.nextInt(10000), result.length - displ))) > 0) {
+						displ += count;
+					}
+					Assert.assertEquals(content.length, displ);
+					Assert.assertArrayEquals(content, result);
+				}
+				zis.close();
+				Assert.assertEquals(0, pool.getLeasedCount());
+			} finally {
+				deflater.end();
+				inflater.end();
+			}
+
+			try(final ByteArrayOutputStream	baos = new ByteArrayOutputStream()) {
+				try(final RecordOutputStream	ros = new RecordOutputStream(baos, pool)) {
+					ros.write(content);
+				}
+				try(final CompressedOutputStream	cos = new CompressedOutputStream(new ByteArrayOutputStream(), (byte)' ', pool)) {
+					cos.write(content);
+				}
+				Assert.assertEquals(0, pool.getLeasedCount());
+				
+				try(final RecordInputStream	ris = new RecordInputStream(new ByteArrayInputStream(baos.toByteArray()), pool)) {
+					final ByteArrayOutputStream	result = new ByteArrayOutputStream();
+					
+					ris.transferTo(result);
+					Assert.assertEquals(new String(content).replace("\n", System.lineSeparator()), result.toString());
+				}
+				Assert.assertEquals(0, pool.getLeasedCount());
+			}
+			
+			final OutputStream		broken = new OutputStream() {
+										@Override
+										public void write(final int b) throws IOException {
+											throw new IOException("Data channel is broken");
+										}
+									};
+			
+			// Encoder closed after the data channel failure must return its buffer to the pool
+			try(final CompressedOutputStream	cos = new CompressedOutputStream(broken, (byte)0, pool)) {
+				cos.write(content);
+				Assert.fail("Mandatory exception was not detected (broken nested stream)");
+			} catch (IOException exc) {
+			}
+			Assert.assertEquals(0, pool.getLeasedCount());
+			
+			// Record encoder closes framed one even if the record end can't be sent
+			try(final RecordOutputStream	ros = new RecordOutputStream(new BlockOutputStream(broken, pool), pool)) {
+				ros.write(content);
+				Assert.fail("Mandatory exception was not detected (broken nested stream)");
+			} catch (IOException exc) {
+			}
+			Assert.assertEquals(0, pool.getLeasedCount());
+			
+			final BlockOutputStream	bos = new BlockOutputStream(new ByteArrayOutputStream(), pool);
+			
+			// Closed encoder must return its buffer to the pool only once
+			bos.close();
+			bos.close();
+			Assert.assertEquals(0, pool.getLeasedCount());
+			try{bos.write(content);
+				Assert.fail("Mandatory exception was not detected (write after close)");
+			} catch (IOException exc) {
+			}
+		}
+	}
+
+	private static String translate(final AsciiCodec codec, final byte[] content, final int chunk) {
+		final ByteBuffer	src = ByteBuffer.allocateDirect(chunk), dst = ByteBuffer.allocate(chunk);
+		final StringBuilder	sb = new StringBuilder();
+		int					displ = 0;
+		
+		while (displ < content.length || src.position() > 0) {
+			while (displ < content.length && src.hasRemaining()) {
+				src.put(content[displ++]);
+			}
+			src.flip();
+			codec.translate(src, dst);
+			src.compact();
+			dst.flip();
+			while (dst.hasRemaining()) {
+				sb.append((char)dst.get());
+			}
+			dst.clear();
+		}
+		codec.finish(dst);
+		dst.flip();
+		while (dst.hasRemaining()) {
+			sb.append((char)dst.get());
+		}
+		return sb.toString();
+	}
 }